@@ -1,46 +1,100 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URLDecoder;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.regex.*;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.*;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 public class TM {
+    protected static final int MAX_ARGUMENTS = 5;
+
     public static void main(String[] args) throws IOException {
-        if(args.length >= 1 && args.length <= 4) {
-            TaskManager tm = TaskManager.getInstance();
-            tm.run(args);
+        args = RunStats.configure(args);
+        if(args.length >= 1 && args.length <= MAX_ARGUMENTS) {
+            if (RunStats.isEnabled() || !DaemonClient.forward(args)) {
+                TaskManager tm = TaskManager.getInstance();
+                tm.run(args);
+            }
         } else {
             System.out.println("Usage: java TM <command> <data>\n" +
                                 "For a list of commands, type help");
         }
+        RunStats.finish();
     }
 }
 
 enum CommandType {
-    START, STOP, DESCRIBE, SUMMARY, SIZE, RENAME, DELETE, HELP;
+    START, STOP, DESCRIBE, SUMMARY, SIZE, RENAME, DELETE, HELP, DAEMON, BATCH,
+    DURATION, COMPACT, SERVE, WATCH, CONVERT;
+
+    private static final Map<String, CommandType> BY_NAME = new HashMap<>();
+
+    static {
+        for (CommandType type : values()) {
+            BY_NAME.put(type.name(), type);
+        }
+    }
+
+    public static CommandType parse(String command) {
+        CommandType type = BY_NAME.get(command);
+        if (type == null)
+            type = BY_NAME.get(command.toUpperCase());
+        if (type == null)
+            throw new IllegalStateException("Invalid command " + command);
+        return type;
+    }
+}
+
+enum StateRequirement {
+    NONE, RUNNING_TASK, SINGLE_TASK, FULL;
 }
 
 interface Command {
     final String[] SIZES = {"S", "M", "L", "XL"};
     final String HELPSTRING = "For a list of commands, type help";
-    void execute(String[] input, Map<String, Task> taskMap) throws IOException;
+    void execute(String[] input, TaskMap taskMap) throws IOException;
     void checkCommandFormat(String[] input);
+    StateRequirement requiredState(String[] input);
+    boolean writesLog();
     Task parseLine(String[] input, Task task);
 }
 
 class StartCommand implements Command {
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) 
+    public void execute(String[] input, TaskMap taskMap) 
                                                             throws IOException {
         String taskName = input[1].toUpperCase();
-        boolean anyRunning = taskMap.values().stream()
-                            .anyMatch(task -> task != null && task.isRunning());
-        if (anyRunning)
+        if (taskMap.getRunningTask() != null)
             throw new IllegalStateException("Cannot start a new task while " + 
                                             "another task is already running.");
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) + 
-                            "\tStart\t\""+ taskName + "\"");
+        Storage.append(LogRecord.start(LogRecord.now(), taskName));
     }
 
     @Override
@@ -55,16 +109,27 @@ class StartCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.RUNNING_TASK;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     public Task parseLine(String[] logLine, Task task) {
-        LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+        long timeStamp = TimestampUtil.toEpochSecond(logLine[0]);
+        int nano = TimestampUtil.nanoOf(logLine[0]);
         String taskName = logLine[2];
         
         if (task != null) {
-            task.updateStart(timeStamp);
+            task.updateStart(timeStamp, nano);
             return null;
         } else {
             Task newTask = new Task(taskName);
-            newTask.updateStart(timeStamp);
+            newTask.updateStart(timeStamp, nano);
             return newTask;
         }
     }
@@ -72,7 +137,7 @@ class StartCommand implements Command {
 
 class StopCommand implements Command {    
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) 
+    public void execute(String[] input, TaskMap taskMap) 
                                                             throws IOException {
         String taskName = input[1].toUpperCase();
         if(!taskMap.containsKey(taskName)) {
@@ -83,8 +148,7 @@ class StopCommand implements Command {
             throw new IllegalStateException("Task " + taskName + 
                                             " is not running");
         }
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) + 
-                            "\tStop\t\"" + taskName + "\"");
+        Storage.append(LogRecord.stop(LogRecord.now(), taskName));
     }
 
     @Override
@@ -95,11 +159,22 @@ class StopCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.SINGLE_TASK;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task task) {
-        LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+        long timeStamp = TimestampUtil.toEpochSecond(logLine[0]);
+        int nano = TimestampUtil.nanoOf(logLine[0]);
         if (task != null) {
-            task.updateStop(timeStamp);
+            task.updateStop(timeStamp, nano);
         } else {
             throw new IllegalStateException("No existing task for STOP " +
                                             "command");
@@ -110,23 +185,22 @@ class StopCommand implements Command {
 
 class DescribeCommand implements Command {
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) 
+    public void execute(String[] input, TaskMap taskMap) 
                                                             throws IOException {
         String taskName = input[1].toUpperCase();
-        String log = "\"" + taskName  + "\"" + "\t\"" + input[2] + "\"";
+        String size = null;
 
         if (input.length == 4) {
-            String size = input[3].toUpperCase();
-            if (Arrays.asList(SIZES).contains(size)) {
-                log += "\t" + size;
-            } else {
+            size = input[3].toUpperCase();
+            if (!Arrays.asList(SIZES).contains(size)) {
                 System.err.println("Invalid size, description will be applied" +
                 " but size will be ignored...\n" + "Please enter a valid size" +
                 " next time (S, M, L, XL)");
+                size = null;
             }
         }
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) + 
-                                                    "\tDescribe\t" + log);
+        Storage.append(LogRecord.describe(LogRecord.now(), taskName, input[2], 
+                                          size));
     }
 
     @Override
@@ -143,6 +217,16 @@ class DescribeCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.NONE;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task task) {
         String taskName = logLine[2];
@@ -167,12 +251,11 @@ class DescribeCommand implements Command {
 }
 class SizeCommand implements Command {
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) 
+    public void execute(String[] input, TaskMap taskMap) 
                                                         throws IOException {
         String taskName = input[1].toUpperCase();
         String size = input[2].toUpperCase();   
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) + 
-                            "\tSize\t\"" + taskName  + "\"\t" + size);
+        Storage.append(LogRecord.size(LogRecord.now(), taskName, size));
     }
 
     @Override
@@ -188,6 +271,16 @@ class SizeCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.NONE;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task task) {
         String taskName = logLine[2];
@@ -205,7 +298,7 @@ class SizeCommand implements Command {
 
 class RenameCommand implements Command {
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) 
+    public void execute(String[] input, TaskMap taskMap) 
                                                 throws IOException {
         String taskNameOld = input[1].toUpperCase();
         String taskRename = input[2].toUpperCase();
@@ -214,8 +307,8 @@ class RenameCommand implements Command {
         if (taskMap.containsKey(taskRename))
             throw new IllegalStateException("Cannot rename task to existing " +
                                             "task name");
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) +
-                "\tRename\t\"" + taskNameOld + "\"\t\"" + taskRename + "\"");
+        Storage.append(LogRecord.rename(LogRecord.now(), taskNameOld, 
+                                        taskRename));
     }
 
     @Override
@@ -230,6 +323,16 @@ class RenameCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.FULL;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task task) {
         if (task == null) {
@@ -244,13 +347,12 @@ class RenameCommand implements Command {
 
 class DeleteCommand implements Command {
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) throws 
+    public void execute(String[] input, TaskMap taskMap) throws 
                         IOException {
         String taskName = input[1].toUpperCase();
         if (!taskMap.containsKey(taskName))
             throw new IllegalStateException("Can't delete nonexistent task");
-        FileUtil.writeToFile(LocalDateTime.now().withNano(0) + 
-                                            "\tDelete\t\"" +  taskName + "\"");
+        Storage.append(LogRecord.delete(LogRecord.now(), taskName));
     }
 
     @Override
@@ -261,6 +363,16 @@ class DeleteCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.SINGLE_TASK;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task existingTask) {
         if (existingTask == null) {
@@ -272,15 +384,293 @@ class DeleteCommand implements Command {
     }
 }
 
+class DurationCommand implements Command {
+    @Override
+    public void execute(String[] input, TaskMap taskMap) {
+        throw new IllegalStateException("Invalid command " + input[0]);
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        throw new IllegalStateException("Invalid command " + input[0]);
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.NONE;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return false;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task task) {
+        String taskName = logLine[2];
+        Duration duration = Duration.parse(logLine[3]);
+        if (task != null) {
+            task.addTime(duration);
+            return null;
+        } else {
+            Task newTask = new Task(taskName);
+            newTask.addTime(duration);
+            return newTask;
+        }
+    }
+}
+
+class CompactCommand implements Command {
+
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("compact");
+        TaskMapProcessor.catchUp();
+        int linesBefore = TaskMapProcessor.getLineCount();
+        Path log = Path.of(TextLogEngine.LOGFILE);
+        Path temp = Path.of(TextLogEngine.LOGFILE + ".compact");
+        Map<String, LocalDateTime[]> lastEvents = readLastEvents(log, 
+                                                        taskMap.keySet());
+        List<LogRecord> records = new ArrayList<>();
+        for (Task task : taskMap.values()) {
+            records.addAll(compactRecords(task, 
+                                    lastEvents.get(task.getTaskName())));
+        }
+        records.sort(Comparator.comparing(LogRecord::getTime));
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, 
+                                                        LogReader.CHARSET)) {
+            for (LogRecord record : records) {
+                writer.write(record.format());
+                writer.write('\n');
+            }
+        }
+        int linesAfter = records.size();
+        try (FileChannel channel = FileChannel.open(temp, 
+                                            StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        if (!verify(temp, taskMap)) {
+            Files.deleteIfExists(temp);
+            throw new IllegalStateException("Compacted log does not match " +
+                                            "the current tasks, TM.log was " +
+                                            "left unchanged");
+        }
+        LogAppender.close();
+        Files.move(temp, log, StandardCopyOption.REPLACE_EXISTING, 
+                   StandardCopyOption.ATOMIC_MOVE);
+        SegmentUtil.clearActiveState();
+        SnapshotUtil.deleteSnapshot();
+        OffsetIndex.delete();
+        TaskMapProcessor.reload();
+        System.out.println("Compacted " + TextLogEngine.LOGFILE + " from " + 
+                           linesBefore + " to " + linesAfter + " lines");
+    }
+
+    // Each record is stamped with the time of the last event it stands
+    // for, so the compacted log stays in time order: the last stop or
+    // Duration record for the accumulated time, the last describe or size
+    // for the description and size. A rename changes every record of the
+    // task, so none of them is stamped before it.
+    private Map<String, LocalDateTime[]> readLastEvents(Path log, 
+                            Set<String> names) throws IOException {
+        Map<String, LocalDateTime[]> lastEvents = new HashMap<>();
+        LocalDateTime first = null;
+        List<Segment> segments = SegmentUtil.readManifest();
+        if (!segments.isEmpty())
+            first = segments.get(segments.size() - 1).getLast();
+        try (LogReader reader = FileUtil.openLog(log)) {
+            String[] logLine;
+            while ((logLine = reader.next()) != null) {
+                LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+                if (first == null)
+                    first = timeStamp;
+                CommandType action = CommandType.parse(logLine[1]);
+                LocalDateTime[] times = lastEvents.computeIfAbsent(
+                        logLine[2], name -> new LocalDateTime[] 
+                                    {timeStamp, timeStamp, timeStamp});
+                switch (action) {
+                    case STOP, DURATION -> times[0] = timeStamp;
+                    case DESCRIBE -> {
+                        times[1] = timeStamp;
+                        if (logLine.length == 5)
+                            times[2] = timeStamp;
+                    }
+                    case SIZE -> times[2] = timeStamp;
+                    case RENAME -> {
+                        lastEvents.remove(logLine[2]);
+                        lastEvents.put(logLine[3], new LocalDateTime[] {
+                            later(times[0], timeStamp), 
+                            later(times[1], timeStamp), 
+                            later(times[2], timeStamp)});
+                    }
+                    case DELETE -> lastEvents.remove(logLine[2]);
+                    default -> { }
+                }
+            }
+        }
+        // Tasks carried over from sealed segments have no event in TM.log
+        // and are stamped with the end of the last segment.
+        if (first == null)
+            first = LogRecord.now();
+        for (String name : names) {
+            lastEvents.putIfAbsent(name, 
+                                   new LocalDateTime[] {first, first, first});
+        }
+        return lastEvents;
+    }
+
+    private static LocalDateTime later(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private List<LogRecord> compactRecords(Task task, 
+                                           LocalDateTime[] lastEvents) {
+        List<LogRecord> records = new ArrayList<>();
+        String name = task.getTaskName();
+        records.add(LogRecord.duration(lastEvents[0], name, 
+                                       task.getAccumulatedTime()));
+        if (!task.getDescription().equals("N/A")) {
+            boolean sized = !task.getSize().equals("N/A");
+            records.add(LogRecord.describe(sized 
+                    ? later(lastEvents[1], lastEvents[2]) : lastEvents[1], 
+                    name, task.getDescription(), 
+                    sized ? task.getSize() : null));
+        } else if (!task.getSize().equals("N/A")) {
+            records.add(LogRecord.size(lastEvents[2], name, task.getSize()));
+        }
+        if (task.isRunning()) {
+            records.add(LogRecord.start(task.getStartTime(), name));
+        }
+        return records;
+    }
+
+    private boolean verify(Path compacted, Map<String, Task> taskMap) 
+                                                        throws IOException {
+        Map<String, Task> replayed = new HashMap<>();
+        try (LogReader reader = new LogReader(FileChannel.open(compacted), 0,
+                                        Files.size(compacted), true)) {
+            ParallelReplayProcessor.replay(reader, replayed, 
+                                    TaskMapProcessor.getCommandMap(), 0);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        try (LogReader reader = FileUtil.openLog(compacted)) {
+            LocalDateTime previous = LocalDateTime.MIN;
+            String[] logLine;
+            while ((logLine = reader.next()) != null) {
+                LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+                if (timeStamp.isBefore(previous))
+                    return false;
+                previous = timeStamp;
+            }
+        }
+        if (replayed.size() != taskMap.size())
+            return false;
+        for (Task task : taskMap.values()) {
+            Task copy = replayed.get(task.getTaskName());
+            if (copy == null || 
+                    !copy.getDescription().equals(task.getDescription()) ||
+                    !copy.getSize().equals(task.getSize()) ||
+                    !copy.getAccumulatedTime()
+                         .equals(task.getAccumulatedTime()) ||
+                    !Objects.equals(copy.getStartTime(), task.getStartTime()))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length != 1) {
+            throw new IllegalStateException("Usage: java TM.java compact\n" +
+                                            HELPSTRING);
+        }
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.FULL;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command compact");
+    }
+}
+
+class ConvertCommand implements Command {
+    private static final String BINARY = "BINARY";
+    private static final String TEXT = "TEXT";
+
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("convert");
+        Path log = Path.of(TextLogEngine.LOGFILE);
+        Path binary = Path.of(BinaryLogUtil.BINARY_FILE);
+        int lines;
+        if (input[1].equalsIgnoreCase(BINARY)) {
+            lines = BinaryLogUtil.toBinary();
+            System.out.println("Converted " + lines + " lines of " + 
+                               TextLogEngine.LOGFILE + " (" + 
+                               Files.size(log) + " bytes) to " + 
+                               binary + " (" + Files.size(binary) + 
+                               " bytes)");
+        } else {
+            lines = BinaryLogUtil.toText();
+            if (TaskMapProcessor.getCommandMap() != null)
+                TaskMapProcessor.reload();
+            System.out.println("Converted " + lines + " lines of " + binary +
+                               " (" + Files.size(binary) + " bytes) to " + 
+                               TextLogEngine.LOGFILE + " (" + 
+                               Files.size(log) + " bytes)");
+        }
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length != 2 || (!input[1].equalsIgnoreCase(BINARY) && 
+                                  !input[1].equalsIgnoreCase(TEXT))) {
+            throw new IllegalStateException("Usage: java TM.java convert " +
+                                            "{binary|text}\n" + HELPSTRING);
+        }
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.NONE;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command convert");
+    }
+}
+
 class HelpCommand implements Command {
     private static final String HELP_MESSAGE = 
         "Usage: java TM.java <command>\nCommands:\nstart <task name>\n" +
         "stop <task name>\ndescribe <task name> <\"description\"> " + 
         "[{S|M|L|XL}]\nsize <task name> {S|M|L|XL}\nrename <old task name> " + 
         "<new task name>\ndelete <task name>\nsummary " + 
-        "[<task name> | {S|M|L|XL}]\nhelp\n";
+        "[<task name> | {S|M|L|XL} | --totals | --percentiles]\n" + 
+        "summary [--since <date>] " +
+        "[--until <date>]\nbatch [<file>]\n" + 
+        "compact\nconvert {binary|text}\ndaemon [stop]\nserve [<port>]\n" +
+        "watch [<seconds>]\nhelp\n";
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) {
+    public void execute(String[] input, TaskMap taskMap) {
         System.out.println(HELP_MESSAGE);
     }
    
@@ -291,6 +681,16 @@ class HelpCommand implements Command {
         }
     }
 
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.NONE;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return false;
+    }
+
     @Override
     public Task parseLine(String[] logLine, Task existingTask) {
         throw new IllegalStateException("Illegal log line command help");
@@ -299,343 +699,5126 @@ class HelpCommand implements Command {
 }
 
 class SummaryCommand implements Command {
-    private Map<String, Task> taskMap;
+    private static final String TOTALS_FLAG = "--TOTALS";
+    private static final String PERCENTILES_FLAG = "--PERCENTILES";
+    private static final String SINCE_FLAG = "--SINCE";
+    private static final String UNTIL_FLAG = "--UNTIL";
+    private TaskMap taskMap;
     private Predicate<Task> summaryPredicate;
 
     @Override
-    public void execute(String[] input, Map<String, Task> taskMap) {
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
         this.taskMap = taskMap;
+        if (input.length == 2 && input[1].toUpperCase().equals(TOTALS_FLAG)) {
+            SummaryProcessor.printTotals(taskMap);
+            return;
+        }
+        if (input.length == 2 && 
+                input[1].toUpperCase().equals(PERCENTILES_FLAG)) {
+            SummaryProcessor.printPercentiles(taskMap);
+            return;
+        }
+        if (isRange(input)) {
+            Storage.requireTextLog("range summary");
+            createRangeSummary(parseRange(input));
+            return;
+        }
+        if (input.length == 2 &&
+                !Arrays.asList(SIZES).contains(input[1].toUpperCase()) && 
+                !taskMap.containsKey(input[1].toUpperCase())) {
+                throw new IllegalStateException("Invalid size or task for " + 
+                                              "summary command\n" + HELPSTRING);
+        }
+        TaskStatistics statistics = null;
         if (input.length == 1) {
             this.summaryPredicate = task -> true;
+            statistics = taskMap.statistics(null);
         } else if (Arrays.asList(SIZES).contains(input[1].toUpperCase())) {
             this.summaryPredicate = task -> task.getSize()
                                                 .equals(input[1].toUpperCase());
+            statistics = taskMap.statistics(input[1].toUpperCase());
         } else {
             this.summaryPredicate = task -> task.getTaskName()
                                                 .equals(input[1].toUpperCase());
         }
-        createSummary(taskMap);
+        createSummary(taskMap, statistics);
     }
 
-    private void createSummary(Map<String, Task> taskMap) {
-        List<Task> filteredTasks = taskMap.values().stream()
-                .filter(summaryPredicate)
-                .collect(Collectors.toList());
-        SummaryProcessor.printSummary(filteredTasks);
+    public static boolean isRange(String[] input) {
+        return input.length > 1 && 
+               (input[1].toUpperCase().equals(SINCE_FLAG) || 
+                input[1].toUpperCase().equals(UNTIL_FLAG));
     }
 
-    @Override
-    public void checkCommandFormat(String[] input) {
-        if (input.length > 2) {
-            throw new IllegalStateException("Usage: java TM.java summary " + 
-                                            "[<task name> | {S|M|L|XL}]\n" +
-                                            HELPSTRING);
+    private static LocalDateTime[] parseRange(String[] input) {
+        LocalDateTime[] range = {LocalDateTime.MIN, LocalDateTime.MAX};
+        for (int i = 1; i + 1 < input.length; i += 2) {
+            String flag = input[i].toUpperCase();
+            if (flag.equals(SINCE_FLAG)) {
+                range[0] = parseDate(input[i + 1], false);
+            } else if (flag.equals(UNTIL_FLAG)) {
+                range[1] = parseDate(input[i + 1], true);
+            }
         }
-        else if (input.length == 2 &&
-                !Arrays.asList(SIZES).contains(input[1].toUpperCase()) && 
-                !taskMap.containsKey(input[1].toUpperCase())) {
-                throw new IllegalStateException("Invalid size or task for " + 
-                                              "summary command\n" + HELPSTRING);
+        if (!range[0].isBefore(range[1])) {
+            throw new IllegalStateException("The --since date must be " + 
+                                            "before the --until date");
         }
+        return range;
     }
 
-    @Override
-    public Task parseLine(String[] logLine, Task existingTask) {
-        throw new IllegalStateException("Illegal log line command summary");
+    private static LocalDateTime parseDate(String text, boolean endOfDay) {
+        try {
+            if (text.length() == 10) {
+                LocalDate date = LocalDate.parse(text);
+                return (endOfDay ? date.plusDays(1) : date).atStartOfDay();
+            }
+            return LocalDateTime.parse(text.toUpperCase());
+        } catch (DateTimeException e) {
+            throw new IllegalStateException("Invalid date " + text + 
+                                    ", expected yyyy-MM-dd or " + 
+                                    "yyyy-MM-ddTHH:mm[:ss]");
+        }
     }
-}
 
-class SummaryProcessor {
-    private static Task getCurrentRunningTask(List<Task> tasks) {
-        return tasks.stream().filter(Task::isRunning)
-                             .findFirst().orElse(null);
+    private void createRangeSummary(LocalDateTime[] range) 
+                                                        throws IOException {
+        Map<Task, Duration> times = TimeRangeProcessor.summarize(range[0], 
+                        range[1], CommandMapFactory.createCommandMap());
+        List<Task> clippedTasks = new ArrayList<>(times.size());
+        Task runningTask = null;
+        for (Map.Entry<Task, Duration> entry : times.entrySet()) {
+            Task task = entry.getKey();
+            Task clipped = new Task(task.getTaskName(), task.getDescription(),
+                                    task.getSize(), entry.getValue(), null);
+            clippedTasks.add(clipped);
+            if (task.isRunning() && range[1].isAfter(LocalDateTime.now()))
+                runningTask = clipped;
+        }
+        String heading = "Summary" + 
+            (range[0].equals(LocalDateTime.MIN) ? "" : " since " + range[0]) +
+            (range[1].equals(LocalDateTime.MAX) ? "" : " until " + range[1]) +
+            ":\n";
+        SummaryProcessor.printSummary(heading, clippedTasks, task -> true, 
+                                      runningTask, null);
     }
 
-    private static Duration calculateTotalTime(List<Task> tasks) {
-        return tasks.stream().map(Task::getDuration)
-                    .reduce(Duration.ZERO, Duration::plus);
+    private void createSummary(TaskMap taskMap, TaskStatistics statistics) {
+        Task runningTask = taskMap.getRunningTasks().stream()
+                .filter(summaryPredicate)
+                .findFirst().orElse(null);
+        SummaryProcessor.printSummary("Summary:\n", taskMap.values(), 
+                                      summaryPredicate, runningTask, 
+                                      statistics);
     }
 
-    private static Duration calculateAverageTime(List<Task> tasks) {
-        List<Task> nonZeroTasks = tasks.stream()
-                .filter(task -> task.getDuration().toMillis() > 0).toList();
-        Duration totalTime = calculateTotalTime(nonZeroTasks);
-        return totalTime.dividedBy(nonZeroTasks.size());
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (isRange(input)) {
+            if ((input.length != 3 && input.length != 5) || 
+                    (input.length == 5 && 
+                     (input[1].equalsIgnoreCase(input[3]) || 
+                      !isRange(new String[] {"", input[3]})))) {
+                throw new IllegalStateException("Usage: java TM.java " + 
+                                            "summary [--since <date>] " + 
+                                            "[--until <date>]\n" + 
+                                            HELPSTRING);
+            }
+        } else if (input.length > 2) {
+            throw new IllegalStateException("Usage: java TM.java summary " + 
+                                            "[<task name> | {S|M|L|XL} | " +
+                                            "--totals | --percentiles]\n" + 
+                                            HELPSTRING);
+        }
     }
 
-    private static Duration calculateMinTime(List<Task> tasks) {
-        return tasks.stream().filter(task -> !task.getDuration()
-                    .equals(Duration.ZERO)).map(Task::getDuration)
-                    .min(Duration::compareTo).orElse(Duration.ZERO);
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        if (isRange(input))
+            return StateRequirement.NONE;
+        if (input.length == 2 && 
+                !input[1].toUpperCase().equals(TOTALS_FLAG) &&
+                !input[1].toUpperCase().equals(PERCENTILES_FLAG) &&
+                !Arrays.asList(SIZES).contains(input[1].toUpperCase()))
+            return StateRequirement.SINGLE_TASK;
+        return StateRequirement.FULL;
     }
 
-    private static Duration calculateMaxTime(List<Task> tasks) {
-        return tasks.stream().map(Task::getDuration)
-                    .max(Duration::compareTo).orElse(Duration.ZERO);
+    @Override
+    public boolean writesLog() {
+        return false;
     }
 
-    private static void displayTaskOverview(List<Task> tasks){
-        Duration minDuration = calculateMinTime(tasks);
-        Duration maxDuration = calculateMaxTime(tasks);
-        Duration avgDuration = calculateAverageTime(tasks);
-
-        System.out.println("Total Time Spent on Tasks:      \t" +
-            DurationUtil.formatTotalTime(calculateTotalTime(tasks)) +
-            "\nMin Duration of Started Tasks:     \t" + 
-            DurationUtil.formatTotalTime(minDuration) +
-            "\nMax Duration of Started Tasks:     \t" + 
-            DurationUtil.formatTotalTime(maxDuration)+ 
-            "\nAverage Duration of Started Tasks: \t" + 
-            DurationUtil.formatTotalTime(avgDuration));
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command summary");
     }
+}
 
-    public static void printSummary(List<Task> tasks) {
-        System.out.println("Summary:\n");
+class DaemonCommand implements Command {
+    protected static final String SOCKET_FILE = "TM.sock";
 
-        if (getCurrentRunningTask(tasks) != null) {
-            System.out.println("Current Running Task: \t" + 
-                            getCurrentRunningTask(tasks).getTaskName() + "\n");
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("daemon");
+        if (input.length == 2)
+            throw new IllegalStateException("No daemon is running");
+        if (DaemonClient.isRunning())
+            throw new IllegalStateException("A daemon is already running");
+        Path socketPath = Path.of(SOCKET_FILE);
+        Files.deleteIfExists(socketPath);
+        try (ServerSocketChannel server = ServerSocketChannel
+                                    .open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> 
+                                    new File(SOCKET_FILE).delete()));
+            System.out.println("Daemon listening on " + SOCKET_FILE);
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = serve(client);
+                } catch (EOFException e) {
+                    continue;
+                } catch (IOException e) {
+                    System.err.println("Daemon request failed: " + 
+                                       e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
         }
-        
-        tasks.forEach(task -> System.out.println(task.getSummary())); 
+    }
 
-        if (tasks.size() > 1) {
-            displayTaskOverview(tasks);
+    private boolean serve(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                        Channels.newInputStream(client)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                        Channels.newOutputStream(client)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        boolean stop = args[0].equalsIgnoreCase("daemon");
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        int status = 0;
+        try {
+            System.setOut(new PrintStream(stdout, true));
+            System.setErr(new PrintStream(stderr, true));
+            if (stop) {
+                System.out.println("Daemon stopped");
+            } else {
+                TaskMapProcessor.catchUp();
+                status = TaskManager.getInstance().execute(args);
+            }
+        } catch (RuntimeException e) {
+            String message = e.getMessage() != null ? e.getMessage() 
+                                                    : e.getClass().getName();
+            System.err.println("Daemon request failed: " + message);
+            systemErr.println("Daemon request failed: " + message);
+            status = 1;
+        } finally {
+            System.setOut(systemOut);
+            System.setErr(systemErr);
         }
+        out.writeInt(status);
+        out.writeInt(stdout.size());
+        stdout.writeTo(out);
+        out.writeInt(stderr.size());
+        stderr.writeTo(out);
+        out.flush();
+        return !stop;
     }
-}
-
-class FileUtil {
-    private static final String LOGFILE = "TM.log";
 
-    public static void writeToFile(String content) throws IOException {
-        FileWriter writer = new FileWriter(LOGFILE, true);
-        writer.write(content + '\n');
-        writer.close();
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length > 2 || 
+                (input.length == 2 && !input[1].equalsIgnoreCase("stop"))) {
+            throw new IllegalStateException("Usage: java TM.java daemon " +
+                                            "[stop]\n" + HELPSTRING);
+        }
     }
 
-    public static List<String[]> convertLogToList() throws 
-                                                        FileNotFoundException {
-        List<String[]> lines = new ArrayList<>();
-        File file = new File(LOGFILE); 
-        Scanner scanner = new Scanner(file);
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return input.length == 1 ? StateRequirement.FULL 
+                                 : StateRequirement.NONE;
+    }
 
-        while (scanner.hasNext()) {
-            String line = scanner.nextLine().trim().toUpperCase();
-            if (line.isEmpty())
-                continue;
-            String[] lineArray = parseLine(line);
-            lines.add(lineArray);
-        }
-        scanner.close();
-        return lines;
+    @Override
+    public boolean writesLog() {
+        return false;
     }
 
-    private static String[] parseLine(String line) {
-        List<String> lineList = new ArrayList<>();
-        Matcher matchPattern = Pattern.compile("([^\"]\\S*|\".+?\")\\s*")
-                           .matcher(line);
-        while (matchPattern.find()) {
-            lineList.add(matchPattern.group(1)
-                      .replace("\"", ""));
-        }
-        return lineList.toArray(new String[0]);
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command daemon");
     }
 }
 
-class TaskManager {
-    private static TaskManager instance;
-    private Map<CommandType, Command> commandMap; 
-    private Map<String, Task> taskMap;
-    private static final String LOGFILE = "TM.log";
-    
-    private TaskManager() throws FileNotFoundException {
-        try {
-            createLogFile();
+class DaemonClient {
+    public static boolean isRunning() {
+        try (SocketChannel channel = connect()) {
+            return channel != null;
         } catch (IOException e) {
-            System.out.println("Error creating log file");
-            System.exit(1);
+            return false;
         }
-        this.commandMap = CommandMapFactory.createCommandMap();
-        this.taskMap = TaskMapProcessor.createTaskMap(commandMap);
     }
 
-    public void createLogFile() throws IOException {
-        File file = new File(LOGFILE);
-        if (!file.exists()) {
-            file.createNewFile();
+    public static boolean forward(String[] args) throws IOException {
+        if ((args[0].equalsIgnoreCase("daemon") && args.length == 1) ||
+                args[0].equalsIgnoreCase("batch") || 
+                args[0].equalsIgnoreCase("serve") || 
+                args[0].equalsIgnoreCase("watch"))
+            return false;
+        SocketChannel channel = connect();
+        if (channel == null)
+            return false;
+        int status;
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                        Channels.newInputStream(channel)));
+            status = in.readInt();
+            System.out.write(in.readNBytes(in.readInt()));
+            System.out.flush();
+            System.err.write(in.readNBytes(in.readInt()));
+            System.err.flush();
+        } catch (EOFException e) {
+            System.out.println("Daemon closed the connection");
+            status = 1;
         }
+        if (status != 0)
+            System.exit(status);
+        return true;
     }
 
-    public void run(String[] input) throws IOException {
-        String commandString = input[0].toUpperCase();
-
+    private static SocketChannel connect() {
+        Path socketPath = Path.of(DaemonCommand.SOCKET_FILE);
+        if (!Files.exists(socketPath))
+            return null;
         try {
-            validateCommand(commandString);
-            CommandType action = CommandType.valueOf(commandString);
-            Command command = commandMap.get(action);
-            command.checkCommandFormat(input);
-            command.execute(input, this.taskMap);
-        } catch (IllegalStateException e) {
-            System.out.println(e.getMessage());
-            System.exit(1);
+            return SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return null;
         }
     }
+}
 
-    protected static void validateCommand(String commandString) {
-        if (!Arrays.stream(CommandType.values())
-                    .anyMatch(command -> command.name()
-                    .equals(commandString.toUpperCase()))) {
-            throw new IllegalStateException("Invalid command " + commandString);
+class BatchCommand implements Command {
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("batch");
+        BufferedReader reader;
+        if (input.length == 2) {
+            if (!Files.isReadable(Path.of(input[1])))
+                throw new IllegalStateException("Cannot read batch file " + 
+                                                input[1]);
+            reader = Files.newBufferedReader(Path.of(input[1]), 
+                                             LogReader.CHARSET);
+        } else {
+            reader = new BufferedReader(new InputStreamReader(System.in));
+        }
+        TaskManager tm = TaskManager.getInstance();
+        int lineNumber = 0;
+        int commands = 0;
+        int errors = 0;
+        Storage.setRecordListener(TaskMapProcessor::applyRecord);
+        LogAppender.beginBatch();
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                commands++;
+                try {
+                    runLine(tm, splitArguments(line));
+                } catch (IllegalStateException e) {
+                    System.out.println("Line " + lineNumber + ": " + 
+                                       e.getMessage());
+                    errors++;
+                }
+            }
+        } finally {
+            Storage.setRecordListener(null);
+            LogAppender.endBatch();
+            TaskMapProcessor.advanceTo(FileUtil.getLogLength());
+        }
+        if (errors > 0) {
+            throw new IllegalStateException("Batch finished with " + errors +
+                                " error(s) in " + commands + " command(s)");
         }
     }
 
-    public static TaskManager getInstance() throws FileNotFoundException{
-        if(instance == null) {
-            instance = new TaskManager();
+    private void runLine(TaskManager tm, String[] args) throws IOException {
+        if (args.length < 1 || args.length > TM.MAX_ARGUMENTS) {
+            throw new IllegalStateException("Usage: <command> <data>");
         }
-        return instance;
+        String commandString = args[0].toUpperCase();
+        if (commandString.equals(CommandType.BATCH.name()) ||
+                commandString.equals(CommandType.DAEMON.name()) ||
+                commandString.equals(CommandType.SERVE.name()) ||
+                commandString.equals(CommandType.WATCH.name()) ||
+                commandString.equals(CommandType.CONVERT.name())) {
+            throw new IllegalStateException("Command " + args[0] + 
+                                            " cannot be used in a batch");
+        }
+        tm.dispatch(args);
     }
-}
 
-class Task {
-    private String name, description, size;
-    private LocalDateTime start;
-    private Duration totalTime;
-    private boolean isRunning;
+    protected static String[] splitArguments(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean inArgument = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                inArgument = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inArgument)
+                    args.add(current.toString());
+                current.setLength(0);
+                inArgument = false;
+            } else {
+                current.append(c);
+                inArgument = true;
+            }
+        }
+        if (quoted)
+            throw new IllegalStateException("Unterminated quote");
+        if (inArgument)
+            args.add(current.toString());
+        return args.toArray(new String[0]);
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length > 2) {
+            throw new IllegalStateException("Usage: java TM.java batch " +
+                                            "[<file>]\n" + HELPSTRING);
+        }
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.FULL;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return true;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command batch");
+    }
+}
+
+class ServeCommand implements Command {
+    private static final int DEFAULT_PORT = 8765;
+
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("serve");
+        int port = input.length == 2 ? parsePort(input[1]) : DEFAULT_PORT;
+        TaskServer server = TaskServer.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.out.println("Serving on http://127.0.0.1:" + server.getPort());
+        System.out.flush();
+        try {
+            server.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.stop();
+        }
+    }
+
+    private static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text);
+            if (port >= 0 && port <= 65535)
+                return port;
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalStateException("Invalid port " + text);
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length > 2) {
+            throw new IllegalStateException("Usage: java TM.java serve " +
+                                            "[<port>]\n" + HELPSTRING);
+        }
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.FULL;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return false;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command serve");
+    }
+}
+
+class WatchCommand implements Command {
+    private static final String CLEAR_SCREEN = "\033[H\033[2J";
+    private static final long DEFAULT_REFRESH_MILLIS = 1000;
+    private static final long MIN_REFRESH_MILLIS = 100;
+
+    @Override
+    public void execute(String[] input, TaskMap taskMap) 
+                                                        throws IOException {
+        Storage.requireTextLog("watch");
+        long refresh = TimeUnit.MILLISECONDS.toNanos(input.length == 2 
+                        ? parseRefresh(input[1]) : DEFAULT_REFRESH_MILLIS);
+        Path log = Path.of(TextLogEngine.LOGFILE).toAbsolutePath();
+        boolean console = System.console() != null;
+        try (WatchService watcher = log.getFileSystem().newWatchService()) {
+            log.getParent().register(watcher, 
+                                     StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY);
+            Object fileKey = FileUtil.getLogFileKey();
+            long nextDraw = System.nanoTime();
+            while (true) {
+                long wait = nextDraw - System.nanoTime();
+                WatchKey key = wait > 0 
+                        ? watcher.poll(wait, TimeUnit.NANOSECONDS) 
+                        : watcher.poll();
+                boolean changed = key != null && touchesLog(key);
+                boolean due = System.nanoTime() - nextDraw >= 0;
+                if (changed || due)
+                    fileKey = catchUp(fileKey);
+                if (due) {
+                    draw(console, taskMap);
+                    nextDraw = Math.max(nextDraw + refresh, 
+                                        System.nanoTime());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long parseRefresh(String text) {
+        try {
+            double seconds = Double.parseDouble(text);
+            if (seconds * 1000 >= MIN_REFRESH_MILLIS && seconds <= 86400)
+                return (long) (seconds * 1000);
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalStateException("Invalid refresh interval " + text + 
+                                        ", expected seconds of at least 0.1");
+    }
+
+    private static boolean touchesLog(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || 
+                    TextLogEngine.LOGFILE.equals(
+                                        String.valueOf(event.context())))
+                touched = true;
+        }
+        key.reset();
+        return touched;
+    }
+
+    private static Object catchUp(Object fileKey) throws IOException {
+        Object current = FileUtil.getLogFileKey();
+        if (current == null)
+            return fileKey;
+        if (!current.equals(fileKey)) {
+            TaskMapProcessor.reload();
+        } else if (FileUtil.getLogLength() != 
+                       TaskMapProcessor.getLogOffset()) {
+            TaskMapProcessor.catchUp();
+        }
+        return current;
+    }
+
+    private static void draw(boolean console, TaskMap taskMap) {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        StringBuilder heading = new StringBuilder();
+        if (console)
+            heading.append(CLEAR_SCREEN);
+        heading.append("Summary at ").append(now.toLocalTime()).append(":\n");
+        Task runningTask = taskMap.getRunningTask();
+        if (runningTask != null) {
+            heading.append("\nCurrent Running Task: \t")
+                   .append(runningTask.getTaskName()).append(" (");
+            DurationUtil.appendTotalTime(heading, 
+                                         runningTask.getDuration(now));
+            heading.append(")\n");
+        }
+        SummaryProcessor.printSummary(heading.toString(), taskMap.values(), 
+                                      task -> true, null, 
+                                      taskMap.statistics(null));
+    }
+
+    @Override
+    public void checkCommandFormat(String[] input) {
+        if (input.length > 2) {
+            throw new IllegalStateException("Usage: java TM.java watch " +
+                                            "[<seconds>]\n" + HELPSTRING);
+        }
+    }
+
+    @Override
+    public StateRequirement requiredState(String[] input) {
+        return StateRequirement.FULL;
+    }
+
+    @Override
+    public boolean writesLog() {
+        return false;
+    }
+
+    @Override
+    public Task parseLine(String[] logLine, Task existingTask) {
+        throw new IllegalStateException("Illegal log line command watch");
+    }
+}
+
+class ApiResponse {
+    private final int status;
+    private final String body;
+
+    public ApiResponse(int status, String body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    public static ApiResponse ok() {
+        return new ApiResponse(200, "{\"ok\":true}");
+    }
+
+    public static ApiResponse error(int status, String message) {
+        return new ApiResponse(status, "{\"ok\":false,\"error\":" + 
+                                       JsonUtil.quote(message) + "}");
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public String getBody() {
+        return this.body;
+    }
+}
+
+class JsonUtil {
+    public static String quote(String text) {
+        StringBuilder json = new StringBuilder(text.length() + 2);
+        appendQuoted(json, text);
+        return json.toString();
+    }
+
+    public static void appendQuoted(StringBuilder json, String text) {
+        if (text == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c == '\n') {
+                json.append("\\n");
+            } else if (c == '\t') {
+                json.append("\\t");
+            } else if (c < 0x20) {
+                json.append("\\u00").append(Character.forDigit(c >> 4, 16))
+                    .append(Character.forDigit(c & 0xF, 16));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
+
+class TaskServer {
+    private static final int BACKLOG = 1024;
+    private static final long POLL_MILLIS = 200;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService writer = 
+                                Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<Snapshot> snapshot = 
+                                                    new AtomicReference<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private long checkedLength;
+
+    private TaskServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), port), BACKLOG);
+        handlers = createExecutor();
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+    }
+
+    public static TaskServer start(int port) throws IOException {
+        TaskServer taskServer = new TaskServer(port);
+        TaskManager.getInstance().loadTaskMap();
+        taskServer.publish(null);
+        Storage.setRecordListener(TaskMapProcessor::applyRecord);
+        taskServer.writer.scheduleWithFixedDelay(taskServer::pollLog, 
+                        POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        taskServer.server.start();
+        return taskServer;
+    }
+
+    // TM targets Java 17, where virtual threads do not exist yet, so the
+    // virtual-thread executor is looked up at run time and a cached pool
+    // of platform threads is used when the JDK does not provide it.
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    public void stop() {
+        if (stopped.getCount() == 0)
+            return;
+        server.stop(0);
+        writer.shutdown();
+        handlers.shutdown();
+        Storage.setRecordListener(null);
+        stopped.countDown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        ApiResponse response;
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = parameters(exchange);
+            CommandType action = writeAction(path);
+            if (path.equals("/summary")) {
+                response = method.equals("GET") ? summary(params) 
+                        : ApiResponse.error(405, "Use GET for /summary");
+            } else if (action == null) {
+                response = ApiResponse.error(404, "Unknown endpoint " + path);
+            } else if (!method.equals("POST")) {
+                response = ApiResponse.error(405, "Use POST for " + path);
+            } else {
+                response = submit(() -> write(action, 
+                                              arguments(action, params)));
+            }
+        } catch (IllegalStateException e) {
+            response = ApiResponse.error(400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            response = ApiResponse.error(500, e.toString());
+        }
+        byte[] body = response.getBody().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", 
+                                    "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.getStatus(), body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static CommandType writeAction(String path) {
+        switch (path) {
+            case "/start": return CommandType.START;
+            case "/stop": return CommandType.STOP;
+            case "/describe": return CommandType.DESCRIBE;
+            case "/size": return CommandType.SIZE;
+            case "/rename": return CommandType.RENAME;
+            case "/delete": return CommandType.DELETE;
+            default: return null;
+        }
+    }
+
+    private static String[] arguments(CommandType action, 
+                                      Map<String, String> params) {
+        String command = action.name().toLowerCase();
+        String task = required(params, "task");
+        if (action == CommandType.DESCRIBE) {
+            String description = required(params, "description");
+            return params.containsKey("size") 
+                ? new String[] {command, task, description, params.get("size")}
+                : new String[] {command, task, description};
+        } else if (action == CommandType.SIZE) {
+            return new String[] {command, task, required(params, "size")};
+        } else if (action == CommandType.RENAME) {
+            return new String[] {command, task, required(params, "to")};
+        }
+        return new String[] {command, task};
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty())
+            throw new IllegalStateException("Missing parameter " + name);
+        return value;
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) 
+                                                        throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseQuery(exchange.getRequestURI().getRawQuery(), params);
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        if (body.length > 0)
+            parseQuery(new String(body, StandardCharsets.UTF_8), params);
+        return params;
+    }
+
+    private static void parseQuery(String query, Map<String, String> params) {
+        if (query == null)
+            return;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (pair.isEmpty() || equals == 0)
+                continue;
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), 
+                       URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private ApiResponse submit(Callable<ApiResponse> task) 
+                                                        throws IOException {
+        try {
+            return writer.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting " +
+                                             "for the writer");
+        } catch (RejectedExecutionException e) {
+            return ApiResponse.error(503, "Server is stopping");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private ApiResponse write(CommandType action, String[] args) 
+                                                        throws IOException {
+        LogLock.acquire();
+        boolean changed = false;
+        try {
+            changed = catchUp();
+            TaskManager.getInstance().dispatch(args);
+        } catch (IllegalStateException e) {
+            return ApiResponse.error(400, e.getMessage());
+        } finally {
+            TaskMapProcessor.advanceTo(FileUtil.getLogLength());
+            LogLock.release();
+            publish(changed ? null : Arrays.asList(args[1].toUpperCase(), 
+                    action == CommandType.RENAME ? args[2].toUpperCase() 
+                                                 : args[1].toUpperCase()));
+        }
+        return ApiResponse.ok();
+    }
+
+    private boolean catchUp() throws IOException {
+        long offset = TaskMapProcessor.getLogOffset();
+        int lines = TaskMapProcessor.getLineCount();
+        TaskMapProcessor.catchUp();
+        return offset != TaskMapProcessor.getLogOffset() || 
+               lines != TaskMapProcessor.getLineCount();
+    }
+
+    private void pollLog() {
+        try {
+            long logLength = FileUtil.getLogLength();
+            if (logLength == checkedLength)
+                return;
+            if (catchUp())
+                publish(null);
+            checkedLength = logLength;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read " + TextLogEngine.LOGFILE + 
+                               ": " + e.getMessage());
+        }
+    }
+
+    private void publish(List<String> names) throws IOException {
+        Map<String, Task> live = TaskManager.getInstance().loadTaskMap();
+        Snapshot previous = snapshot.get();
+        Map<String, Task> copies;
+        if (names == null || previous == null) {
+            copies = new HashMap<>(live.size() * 2);
+            for (Task task : live.values()) {
+                copies.put(task.getTaskName(), task.copy());
+            }
+        } else {
+            copies = new HashMap<>(previous.getTasks());
+            for (String name : names) {
+                Task task = live.get(name);
+                if (task == null) {
+                    copies.remove(name);
+                } else {
+                    copies.put(name, task.copy());
+                }
+            }
+        }
+        checkedLength = TaskMapProcessor.getLogOffset();
+        snapshot.set(new Snapshot(TaskMapProcessor.getLogOffset(), 
+                                  TaskMapProcessor.getLineCount(), 
+                                  Collections.unmodifiableMap(copies)));
+    }
+
+    private ApiResponse summary(Map<String, String> params) 
+                                                        throws IOException {
+        Map<String, Task> tasks = snapshot.get().getTasks();
+        String name = params.get("task");
+        String size = params.get("size");
+        if (name != null && !tasks.containsKey(name.toUpperCase()))
+            return ApiResponse.error(404, "Task " + name.toUpperCase() + 
+                                          " does not exist");
+        Iterable<Task> selected = name != null 
+                ? List.of(tasks.get(name.toUpperCase())) : tasks.values();
+        LocalDateTime now = LocalDateTime.now();
+        TaskStatistics statistics = new TaskStatistics();
+        String running = null;
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"tasks\":[");
+        for (Task task : selected) {
+            if (size != null && !task.getSize().equals(size.toUpperCase()))
+                continue;
+            Duration duration = task.getDuration(now);
+            statistics.add(duration);
+            if (task.isRunning() && running == null)
+                running = task.getTaskName();
+            if (statistics.getCount() > 1)
+                json.append(',');
+            json.append("{\"name\":");
+            JsonUtil.appendQuoted(json, task.getTaskName());
+            json.append(",\"description\":");
+            JsonUtil.appendQuoted(json, task.getDescription());
+            json.append(",\"size\":");
+            JsonUtil.appendQuoted(json, task.getSize());
+            json.append(",\"seconds\":").append(duration.getSeconds())
+                .append(",\"running\":").append(task.isRunning()).append('}');
+        }
+        json.append("],\"running\":");
+        JsonUtil.appendQuoted(json, running);
+        json.append(",\"statistics\":{\"count\":")
+            .append(statistics.getCount())
+            .append(",\"totalSeconds\":")
+            .append(statistics.getTotal().getSeconds())
+            .append(",\"minSeconds\":")
+            .append(statistics.getMin().getSeconds())
+            .append(",\"maxSeconds\":")
+            .append(statistics.getMax().getSeconds())
+            .append(",\"averageSeconds\":")
+            .append(statistics.getAverage().getSeconds()).append("}}");
+        return new ApiResponse(200, json.toString());
+    }
+}
+
+class SummaryProcessor {
+    public static void printSummary(List<Task> tasks, Task runningTask, 
+                                    TaskStatistics statistics) {
+        printSummary("Summary:\n", tasks, task -> true, runningTask, 
+                     statistics);
+    }
+
+    public static void printSummary(String heading, Iterable<Task> tasks, 
+                                    Predicate<Task> filter, Task runningTask,
+                                    TaskStatistics statistics) {
+        SummaryWriter writer = new SummaryWriter(System.out, 
+                                                 LocalDateTime.now());
+        writer.writeLine(heading);
+        if (runningTask != null)
+            writer.writeRunningTask(runningTask);
+        for (Task task : tasks) {
+            if (filter.test(task))
+                writer.writeTask(task);
+        }
+        if (writer.getTaskCount() > 1) {
+            writer.writeOverview(statistics == null ? writer.getStatistics() 
+                                                    : statistics);
+        }
+        writer.flush();
+    }
+
+    public static void printTotals(TaskMap taskMap) {
+        SummaryWriter writer = new SummaryWriter(System.out, 
+                                                 LocalDateTime.now());
+        writer.writeLine("Summary Totals:\n");
+        for (String size : taskMap.getSizes()) {
+            TaskStatistics statistics = taskMap.statistics(size);
+            if (statistics.getCount() > 0) {
+                writer.writeLine("Size " + size + " (" + 
+                                 statistics.getCount() + " tasks)");
+                writer.writeOverview(statistics);
+                writer.writeLine("");
+            }
+        }
+        TaskStatistics statistics = taskMap.statistics(null);
+        writer.writeLine("All Tasks (" + statistics.getCount() + " tasks)");
+        writer.writeOverview(statistics);
+        writer.flush();
+    }
+
+    public static void printPercentiles(TaskMap taskMap) {
+        SummaryWriter writer = new SummaryWriter(System.out, 
+                                                 LocalDateTime.now());
+        writer.writeLine("Summary Percentiles:\n");
+        for (String size : taskMap.getSizes()) {
+            DurationHistogram histogram = taskMap.histogram(size);
+            if (histogram.getCount() > 0) {
+                writer.writeLine("Size " + size + " (" + 
+                                 histogram.getCount() + " started tasks)");
+                writer.writeDistribution(histogram);
+                writer.writeLine("");
+            }
+        }
+        DurationHistogram histogram = taskMap.histogram(null);
+        writer.writeLine("All Tasks (" + histogram.getCount() + 
+                         " started tasks)");
+        writer.writeDistribution(histogram);
+        writer.flush();
+    }
+}
+
+class SummaryWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int HISTOGRAM_WIDTH = 40;
+    private final PrintStream out;
+    private final LocalDateTime now;
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE * 2);
+    private final TaskStatistics statistics = new TaskStatistics();
+    private int taskCount;
+
+    public SummaryWriter(PrintStream out, LocalDateTime now) {
+        this.out = out;
+        this.now = now;
+    }
+
+    public void writeLine(String line) {
+        buffer.append(line).append('\n');
+        flushIfFull();
+    }
+
+    public void writeRunningTask(Task task) {
+        buffer.append("Current Running Task: \t").append(task.getTaskName())
+              .append("\n\n");
+    }
+
+    public void writeTask(Task task) {
+        Duration duration = task.getDuration(now);
+        statistics.add(duration);
+        taskCount++;
+        task.appendSummary(buffer, duration);
+        buffer.append('\n');
+        flushIfFull();
+    }
+
+    public void writeOverview(TaskStatistics statistics) {
+        buffer.append("Total Time Spent on Tasks:      \t");
+        DurationUtil.appendTotalTime(buffer, statistics.getTotal());
+        buffer.append("\nMin Duration of Started Tasks:     \t");
+        DurationUtil.appendTotalTime(buffer, statistics.getMin());
+        buffer.append("\nMax Duration of Started Tasks:     \t");
+        DurationUtil.appendTotalTime(buffer, statistics.getMax());
+        buffer.append("\nAverage Duration of Started Tasks: \t");
+        DurationUtil.appendTotalTime(buffer, statistics.getAverage());
+        buffer.append('\n');
+        flushIfFull();
+    }
+
+    public void writeDistribution(DurationHistogram histogram) {
+        buffer.append("p50 Duration of Started Tasks:     \t");
+        DurationUtil.appendTotalTime(buffer, histogram.percentile(50));
+        buffer.append("\np90 Duration of Started Tasks:     \t");
+        DurationUtil.appendTotalTime(buffer, histogram.percentile(90));
+        buffer.append("\np99 Duration of Started Tasks:     \t");
+        DurationUtil.appendTotalTime(buffer, histogram.percentile(99));
+        buffer.append('\n');
+        long[] octaves = histogram.octaveCounts();
+        int first = 0;
+        int last = octaves.length - 1;
+        while (first < last && octaves[first] == 0)
+            first++;
+        while (last > first && octaves[last] == 0)
+            last--;
+        long largest = 1;
+        for (long tally : octaves) {
+            largest = Math.max(largest, tally);
+        }
+        for (int octave = first; octave <= last && histogram.getCount() > 0; 
+                octave++) {
+            long from = octave == 0 ? 0 : 1L << (octave - 1);
+            buffer.append("  ");
+            DurationUtil.appendTotalTime(buffer, Duration.ofSeconds(from));
+            buffer.append(" - ");
+            DurationUtil.appendTotalTime(buffer, 
+                    Duration.ofSeconds(octave == 0 ? 1 : from * 2));
+            buffer.append(" \t").append(octaves[octave]).append('\t');
+            long bar = (octaves[octave] * HISTOGRAM_WIDTH + largest - 1) / 
+                       largest;
+            for (long i = 0; i < bar; i++) {
+                buffer.append('#');
+            }
+            buffer.append('\n');
+        }
+        flushIfFull();
+    }
+
+    public int getTaskCount() {
+        return this.taskCount;
+    }
+
+    public TaskStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    private void flushIfFull() {
+        if (buffer.length() >= BUFFER_SIZE)
+            flush();
+    }
+
+    public void flush() {
+        out.append(buffer);
+        out.flush();
+        buffer.setLength(0);
+    }
+}
+
+class TaskStatistics {
+    private int count;
+    private Duration total = Duration.ZERO;
+    private Duration min;
+    private Duration max;
+    private Duration startedTotal = Duration.ZERO;
+    private int startedCount;
+
+    public TaskStatistics() {
+    }
+
+    public TaskStatistics(int count, Duration total, Duration min, 
+                          Duration max, Duration startedTotal, 
+                          int startedCount) {
+        this.count = count;
+        this.total = total;
+        this.min = min;
+        this.max = max;
+        this.startedTotal = startedTotal;
+        this.startedCount = startedCount;
+    }
+
+    public void add(Duration duration) {
+        count++;
+        total = total.plus(duration);
+        if (!duration.isZero() && (min == null || duration.compareTo(min) < 0))
+            min = duration;
+        if (max == null || duration.compareTo(max) > 0)
+            max = duration;
+        if (duration.toMillis() > 0) {
+            startedTotal = startedTotal.plus(duration);
+            startedCount++;
+        }
+    }
+
+    public TaskStatistics combine(TaskStatistics other) {
+        count += other.count;
+        total = total.plus(other.total);
+        if (other.min != null && (min == null || other.min.compareTo(min) < 0))
+            min = other.min;
+        if (other.max != null && (max == null || other.max.compareTo(max) > 0))
+            max = other.max;
+        startedTotal = startedTotal.plus(other.startedTotal);
+        startedCount += other.startedCount;
+        return this;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public Duration getTotal() {
+        return this.total;
+    }
+
+    public Duration getMin() {
+        return min == null ? Duration.ZERO : min;
+    }
+
+    public Duration getMax() {
+        return max == null ? Duration.ZERO : max;
+    }
+
+    public Duration getAverage() {
+        if (startedCount == 0)
+            return Duration.ZERO;
+        return startedTotal.dividedBy(startedCount);
+    }
+}
+
+class DurationAggregate {
+    private final DurationHistogram histogram = new DurationHistogram();
+    private int count;
+    private int nonZeroCount;
+    private Duration total = Duration.ZERO;
+    private Duration startedTotal = Duration.ZERO;
+    private int startedCount;
+    private Duration min;
+    private Duration max;
+    private boolean staleExtremes;
+
+    public void add(Duration duration) {
+        count++;
+        total = total.plus(duration);
+        if (!duration.isZero()) {
+            nonZeroCount++;
+            includeExtreme(duration);
+        }
+        if (duration.toMillis() > 0) {
+            startedTotal = startedTotal.plus(duration);
+            startedCount++;
+            histogram.add(duration);
+        }
+    }
+
+    public void remove(Duration duration) {
+        count--;
+        total = total.minus(duration);
+        if (!duration.isZero()) {
+            nonZeroCount--;
+            if (nonZeroCount == 0) {
+                min = null;
+                max = null;
+                staleExtremes = false;
+            } else if (duration.compareTo(min) == 0 || 
+                       duration.compareTo(max) == 0) {
+                staleExtremes = true;
+            }
+        }
+        if (duration.toMillis() > 0) {
+            startedTotal = startedTotal.minus(duration);
+            startedCount--;
+            histogram.remove(duration);
+        }
+    }
+
+    // Removing the current minimum or maximum leaves the next one unknown
+    // without keeping every duration, so it is found again by a scan of
+    // the tasks the next time statistics are asked for.
+    public boolean hasStaleExtremes() {
+        return this.staleExtremes;
+    }
+
+    public void resetExtremes() {
+        min = null;
+        max = null;
+        staleExtremes = false;
+    }
+
+    public void includeExtreme(Duration duration) {
+        if (staleExtremes || duration.isZero())
+            return;
+        if (min == null || duration.compareTo(min) < 0)
+            min = duration;
+        if (max == null || duration.compareTo(max) > 0)
+            max = duration;
+    }
+
+    public TaskStatistics statistics(Collection<Task> runningTasks, 
+                                     LocalDateTime now) {
+        Duration largest = max;
+        if (count > nonZeroCount && (largest == null || largest.isNegative()))
+            largest = Duration.ZERO;
+        TaskStatistics statistics = new TaskStatistics(count, total, min, 
+                                        largest, startedTotal, startedCount);
+        for (Task task : runningTasks) {
+            statistics.add(task.getDuration(now));
+        }
+        return statistics;
+    }
+
+    public DurationHistogram histogram(Collection<Task> runningTasks, 
+                                       LocalDateTime now) {
+        DurationHistogram copy = new DurationHistogram().merge(histogram);
+        for (Task task : runningTasks) {
+            copy.add(task.getDuration(now));
+        }
+        return copy;
+    }
+}
+
+class DurationHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+
+    public void add(Duration duration) {
+        counts[bucket(duration)]++;
+        count++;
+    }
+
+    public void remove(Duration duration) {
+        int bucket = bucket(duration);
+        if (counts[bucket] > 0) {
+            counts[bucket]--;
+            count--;
+        }
+    }
+
+    public DurationHistogram merge(DurationHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        return this;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public Duration percentile(double percentile) {
+        if (count == 0)
+            return Duration.ZERO;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Duration.ofSeconds(lowerBound(i) + width(i) / 2);
+        }
+        return Duration.ZERO;
+    }
+
+    public long[] octaveCounts() {
+        long[] octaves = new long[65];
+        for (int i = 0; i < BUCKETS; i++) {
+            long lowerBound = lowerBound(i);
+            octaves[lowerBound == 0 ? 0 
+                    : 64 - Long.numberOfLeadingZeros(lowerBound)] += counts[i];
+        }
+        return octaves;
+    }
+
+    private static int bucket(Duration duration) {
+        long seconds = Math.max(0, duration.getSeconds());
+        if (seconds < SUB_BUCKETS)
+            return (int) seconds;
+        int shift = 63 - Long.numberOfLeadingZeros(seconds) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + 
+               (int) ((seconds >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    private static long width(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return 1;
+        return 1L << ((bucket >> SUB_BUCKET_BITS) - 1);
+    }
+}
+
+class TaskAggregates {
+    private final TaskMap taskMap;
+    private DurationAggregate allTasks;
+    private final Map<String, DurationAggregate> bySize = 
+                                                        new LinkedHashMap<>();
+
+    public TaskAggregates(TaskMap taskMap) {
+        this.taskMap = taskMap;
+        clear();
+    }
+
+    // Running tasks are left out of the aggregates; their time changes
+    // every second, so it is added when statistics are read.
+    public void add(Task task) {
+        if (task.isRunning())
+            return;
+        allTasks.add(task.getAccumulatedTime());
+        bySize.computeIfAbsent(task.getSize(), size -> new DurationAggregate())
+              .add(task.getAccumulatedTime());
+    }
+
+    public void remove(Task task) {
+        if (task.isRunning())
+            return;
+        allTasks.remove(task.getAccumulatedTime());
+        bySize.get(task.getSize()).remove(task.getAccumulatedTime());
+    }
+
+    public void rebuild(Collection<Task> tasks) {
+        clear();
+        for (Task task : tasks) {
+            add(task);
+        }
+    }
+
+    public void clear() {
+        allTasks = new DurationAggregate();
+        bySize.clear();
+        for (String size : Command.SIZES) {
+            bySize.put(size, new DurationAggregate());
+        }
+        bySize.put("N/A", new DurationAggregate());
+    }
+
+    public Set<String> getSizes() {
+        return bySize.keySet();
+    }
+
+    public TaskStatistics statistics(String size) {
+        DurationAggregate aggregate = size == null ? allTasks 
+                                        : bySize.get(size);
+        if (aggregate == null)
+            return new TaskStatistics();
+        if (aggregate.hasStaleExtremes()) {
+            aggregate.resetExtremes();
+            for (Task task : taskMap.values()) {
+                if (!task.isRunning() && 
+                        (size == null || task.getSize().equals(size)))
+                    aggregate.includeExtreme(task.getAccumulatedTime());
+            }
+        }
+        List<Task> running = new ArrayList<>();
+        for (Task task : taskMap.getRunningTasks()) {
+            if (size == null || task.getSize().equals(size))
+                running.add(task);
+        }
+        return aggregate.statistics(running, LocalDateTime.now());
+    }
+
+    public DurationHistogram histogram(String size) {
+        DurationAggregate aggregate = size == null ? allTasks 
+                                        : bySize.get(size);
+        if (aggregate == null)
+            return new DurationHistogram();
+        List<Task> running = new ArrayList<>();
+        for (Task task : taskMap.getRunningTasks()) {
+            if (size == null || task.getSize().equals(size))
+                running.add(task);
+        }
+        return aggregate.histogram(running, LocalDateTime.now());
+    }
+}
+
+interface StorageEngine {
+    void open() throws IOException;
+    void append(LogRecord record) throws IOException;
+    long getLength() throws IOException;
+    // Each load replays into the engine's own task map and returns it.
+    TaskMap load(Map<CommandType, Command> commands) throws IOException;
+    // Loads only the named task. May return null whenever the engine
+    // cannot do that reliably; the task manager then calls load.
+    TaskMap loadTask(Map<CommandType, Command> commands, String name) 
+                                                        throws IOException;
+    // Loads only the running task, or no task if none is running. May
+    // return null the same way loadTask does.
+    TaskMap loadRunningTask(Map<CommandType, Command> commands) 
+                                                        throws IOException;
+    void catchUp() throws IOException;
+}
+
+class Storage {
+    private static StorageEngine engine = new TextLogEngine();
+    private static Consumer<LogRecord> recordListener;
+
+    public static StorageEngine getEngine() {
+        return engine;
+    }
+
+    public static void setEngine(StorageEngine storageEngine) {
+        engine = storageEngine;
+    }
+
+    public static void append(LogRecord record) throws IOException {
+        engine.append(record);
+        if (recordListener != null)
+            recordListener.accept(record);
+    }
+
+    public static void setRecordListener(Consumer<LogRecord> listener) {
+        recordListener = listener;
+    }
+
+    // The batch, daemon, serve, watch, compact, convert and range summary
+    // commands read or replace TM.log themselves, so any other engine
+    // refuses them rather than have them work on a log it does not use.
+    public static void requireTextLog(String command) {
+        if (!(engine instanceof TextLogEngine))
+            throw new IllegalStateException("The " + command + " command " + 
+                                            "works only with the text " + 
+                                            "log engine");
+    }
+}
+
+class TextLogEngine implements StorageEngine {
+    protected static final String LOGFILE = "TM.log";
+
+    @Override
+    public void open() throws IOException {
+        File file = new File(LOGFILE);
+        if (!file.exists()) {
+            file.createNewFile();
+        }
+    }
+
+    @Override
+    public void append(LogRecord record) throws IOException {
+        LogAppender.append(record.format() + '\n');
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return FileUtil.getLogLength();
+    }
+
+    @Override
+    public TaskMap load(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        return TaskMapProcessor.createTaskMap(commands);
+    }
+
+    @Override
+    public TaskMap loadTask(Map<CommandType, Command> commands, String name) 
+                                                        throws IOException {
+        return TaskMapProcessor.loadTask(commands, name);
+    }
+
+    @Override
+    public TaskMap loadRunningTask(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        return TaskMapProcessor.loadRunningTask(commands);
+    }
+
+    @Override
+    public void catchUp() throws IOException {
+        TaskMapProcessor.catchUp();
+    }
+}
+
+class MemoryEngine implements StorageEngine {
+    private final List<LogRecord> records = new ArrayList<>();
+    private final Map<String, List<LogRecord>> byTask = new HashMap<>();
+    private final Set<String> running = new LinkedHashSet<>();
+    private final TaskMap taskMap = new TaskMap();
+    private int replayed;
+
+    @Override
+    public void open() {
+    }
+
+    // Each task's records are kept apart as they are appended, following
+    // renames and dropped on delete, the way the task index does for
+    // TM.log.
+    @Override
+    public void append(LogRecord record) {
+        records.add(record);
+        String[] fields = record.getFields();
+        String name = fields[2];
+        switch (record.getType()) {
+            case RENAME -> {
+                List<LogRecord> chain = byTask.remove(name);
+                if (chain == null)
+                    chain = new ArrayList<>();
+                chain.add(record);
+                byTask.put(fields[3], chain);
+                if (running.remove(name))
+                    running.add(fields[3]);
+            }
+            case DELETE -> {
+                byTask.remove(name);
+                running.remove(name);
+            }
+            default -> {
+                byTask.computeIfAbsent(name, key -> new ArrayList<>())
+                      .add(record);
+                if (record.getType() == CommandType.START)
+                    running.add(name);
+                else if (record.getType() == CommandType.STOP)
+                    running.remove(name);
+            }
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return records.size();
+    }
+
+    @Override
+    public TaskMap load(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        replayed = records.size();
+        Iterator<LogRecord> pending = records.subList(0, replayed).iterator();
+        return TaskMapProcessor.loadFrom(taskMap, commands, 
+                                         new RecordReader() {
+            @Override
+            public String[] next() {
+                return pending.hasNext() ? pending.next().getFields() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Override
+    public TaskMap loadTask(Map<CommandType, Command> commands, String name) 
+                                                        throws IOException {
+        List<String[]> chain = new ArrayList<>();
+        for (LogRecord record : byTask.getOrDefault(name, List.of())) {
+            chain.add(record.getFields());
+        }
+        return TaskMapProcessor.loadRecords(taskMap, commands, name, 
+                                            new IndexedRecords(chain, false));
+    }
+
+    @Override
+    public TaskMap loadRunningTask(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        if (running.isEmpty()) {
+            taskMap.reset(commands);
+            return taskMap;
+        }
+        if (running.size() > 1)
+            return null;
+        TaskMap single = loadTask(commands, running.iterator().next());
+        return single == null || single.getRunningTask() == null 
+               ? null : single;
+    }
+
+    @Override
+    public void catchUp() {
+        while (replayed < records.size()) {
+            TaskMapProcessor.applyLine(taskMap, 
+                                       records.get(replayed++).getFields(), 
+                                       replayed);
+        }
+        taskMap.remove(null);
+    }
+
+    public List<LogRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+}
+
+class LogRecord {
+    private static Clock clock = Clock.systemDefaultZone();
+    private final LocalDateTime time;
+    private final CommandType type;
+    private final String[] values;
+    private final int quoted;
+
+    private LogRecord(LocalDateTime time, CommandType type, int quoted, 
+                      String... values) {
+        this.time = time;
+        this.type = type;
+        this.quoted = quoted;
+        this.values = values;
+        for (int i = 0; i < values.length; i++) {
+            if (!isPlain(values[i], isQuoted(i))) {
+                throw new IllegalStateException("Error: names and " + 
+                        "descriptions cannot be empty or contain double " + 
+                        "quotes or line breaks");
+            }
+        }
+    }
+
+    public static LocalDateTime now() {
+        return LocalDateTime.now(clock).withNano(0);
+    }
+
+    public static void setClock(Clock recordClock) {
+        clock = recordClock;
+    }
+
+    public static LogRecord start(LocalDateTime time, String name) {
+        return new LogRecord(time, CommandType.START, 0b1, name);
+    }
+
+    public static LogRecord stop(LocalDateTime time, String name) {
+        return new LogRecord(time, CommandType.STOP, 0b1, name);
+    }
+
+    public static LogRecord describe(LocalDateTime time, String name, 
+                                     String description, String size) {
+        if (size == null)
+            return new LogRecord(time, CommandType.DESCRIBE, 0b11, name, 
+                                 description);
+        return new LogRecord(time, CommandType.DESCRIBE, 0b11, name, 
+                             description, size);
+    }
+
+    public static LogRecord size(LocalDateTime time, String name, 
+                                 String size) {
+        return new LogRecord(time, CommandType.SIZE, 0b1, name, size);
+    }
+
+    public static LogRecord rename(LocalDateTime time, String oldName, 
+                                   String newName) {
+        return new LogRecord(time, CommandType.RENAME, 0b11, oldName, 
+                             newName);
+    }
+
+    public static LogRecord delete(LocalDateTime time, String name) {
+        return new LogRecord(time, CommandType.DELETE, 0b1, name);
+    }
+
+    public static LogRecord duration(LocalDateTime time, String name, 
+                                     Duration duration) {
+        return new LogRecord(time, CommandType.DURATION, 0b1, name, 
+                             duration.toString());
+    }
+
+    public LocalDateTime getTime() {
+        return this.time;
+    }
+
+    public CommandType getType() {
+        return this.type;
+    }
+
+    public static String label(CommandType type) {
+        String name = type.name();
+        return name.charAt(0) + name.substring(1).toLowerCase();
+    }
+
+    public String format() {
+        StringBuilder line = new StringBuilder(64).append(time).append('\t')
+                .append(label(type));
+        for (int i = 0; i < values.length; i++) {
+            line.append('\t');
+            if (isQuoted(i)) {
+                line.append('"').append(values[i]).append('"');
+            } else {
+                line.append(values[i]);
+            }
+        }
+        return line.toString();
+    }
+
+    // The fields the log reader would produce for format(). Every value
+    // was checked to read back as itself, so no text is parsed.
+    public String[] getFields() {
+        String[] fields = new String[values.length + 2];
+        fields[0] = time.toString();
+        fields[1] = type.name();
+        for (int i = 0; i < values.length; i++) {
+            fields[i + 2] = values[i].toUpperCase();
+        }
+        return fields;
+    }
+
+    private boolean isQuoted(int field) {
+        return (quoted & (1 << field)) != 0;
+    }
+
+    private static boolean isPlain(String value, boolean quoted) {
+        if (value.isEmpty() || value.indexOf('"') >= 0 || 
+                value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            return false;
+        if (quoted)
+            return true;
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
+
+class FileUtil {
+
+    public static long getLogLength() throws IOException {
+        return Files.size(Path.of(TextLogEngine.LOGFILE));
+    }
+
+    public static Object getLogFileKey() throws IOException {
+        try {
+            return Files.readAttributes(Path.of(TextLogEngine.LOGFILE), 
+                                BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public static boolean isLineTerminated(long length) throws IOException {
+        if (length == 0)
+            return true;
+        try (FileChannel channel = FileChannel.open(
+                                        Path.of(TextLogEngine.LOGFILE))) {
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, length - 1);
+            return lastByte.get(0) == '\n';
+        }
+    }
+
+    public static long checksumBefore(long offset, int span) 
+                                                        throws IOException {
+        long start = Math.max(0, offset - span);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (offset - start));
+        try (FileChannel channel = FileChannel.open(
+                                        Path.of(TextLogEngine.LOGFILE))) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0)
+                    break;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    public static LogReader openLog(long offset, long end, 
+                                    boolean partialLine) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(TextLogEngine.LOGFILE));
+        channel.position(offset);
+        return new LogReader(channel, offset, end - offset, partialLine);
+    }
+
+    public static LogReader openLog(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path);
+        return new LogReader(channel, 0, channel.size(), true);
+    }
+
+    public static LogReader openCompressedLog(Path path) throws IOException {
+        InputStream in = new GZIPInputStream(Files.newInputStream(path), 
+                                             1 << 16);
+        ReadableByteChannel channel = 
+                Runtime.getRuntime().availableProcessors() > 1 
+                ? new PrefetchChannel(in) : Channels.newChannel(in);
+        return new LogReader(channel, 0, Long.MAX_VALUE, true);
+    }
+
+    public static String[] parseLine(String line) {
+        byte[] bytes = line.trim().getBytes(StandardCharsets.UTF_8);
+        return LogReader.tokenize(bytes, 0, bytes.length, new String[8], 
+                                  StandardCharsets.UTF_8);
+    }
+}
+
+class PrefetchChannel implements ReadableByteChannel {
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final byte[] END = new byte[0];
+    private final InputStream in;
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(4);
+    private final Thread worker;
+    private volatile IOException failure;
+    private byte[] current;
+    private int position;
+    private boolean open = true;
+
+    public PrefetchChannel(InputStream in) {
+        this.in = in;
+        this.worker = new Thread(this::prefetch, "tm-prefetch");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    private void prefetch() {
+        try {
+            byte[] block;
+            do {
+                block = in.readNBytes(BLOCK_SIZE);
+                blocks.put(block.length == 0 ? END : block);
+            } while (block.length > 0);
+        } catch (IOException e) {
+            failure = e;
+            blocks.offer(END);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (current == END)
+            return -1;
+        if (current == null || position == current.length) {
+            try {
+                current = blocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+            if (current == END) {
+                if (failure != null)
+                    throw failure;
+                return -1;
+            }
+        }
+        int count = Math.min(target.remaining(), current.length - position);
+        target.put(current, position, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        worker.interrupt();
+        in.close();
+    }
+}
+
+enum Durability {
+    RECORD, BATCH, OS;
+
+    public static Durability fromEnvironment() {
+        String setting = System.getenv("TM_DURABILITY");
+        if (setting == null)
+            return OS;
+        try {
+            return valueOf(setting.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid TM_DURABILITY " + 
+                                    setting + ", expected record, batch or os");
+        }
+    }
+}
+
+class LogAppender {
+    private static final List<String> pending = new ArrayList<>();
+    private static Durability durability;
+    private static FileChannel channel;
+    private static Object channelKey;
+    private static int batchDepth;
+    private static boolean writing;
+    private static long appended;
+    private static long committed;
+    private static long failedFrom;
+    private static long failedThrough;
+    private static IOException failure;
+
+    public static void setDurability(Durability policy) {
+        durability = policy;
+    }
+
+    public static void append(String record) throws IOException {
+        long ticket;
+        synchronized (LogAppender.class) {
+            pending.add(record);
+            ticket = ++appended;
+            if (batchDepth > 0)
+                return;
+        }
+        commit(ticket);
+    }
+
+    public static synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    public static void endBatch() throws IOException {
+        long ticket;
+        synchronized (LogAppender.class) {
+            if (batchDepth == 0)
+                throw new IllegalStateException("No batch in progress");
+            if (--batchDepth > 0)
+                return;
+            ticket = appended;
+        }
+        commit(ticket);
+    }
+
+    private static void commit(long ticket) throws IOException {
+        LogLock.acquire();
+        try {
+            commitLocked(ticket);
+        } finally {
+            LogLock.release();
+        }
+    }
+
+    private static void commitLocked(long ticket) throws IOException {
+        List<String> records;
+        long first;
+        long last;
+        synchronized (LogAppender.class) {
+            while (writing && committed < ticket) {
+                try {
+                    LogAppender.class.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while " + 
+                                                     "appending to log");
+                }
+            }
+            if (committed >= ticket) {
+                if (failure != null && ticket >= failedFrom && 
+                        ticket <= failedThrough)
+                    throw new IOException("Log append failed", failure);
+                return;
+            }
+            writing = true;
+            records = new ArrayList<>(pending);
+            pending.clear();
+            first = committed + 1;
+            last = appended;
+        }
+        try {
+            write(records);
+            OffsetIndex.refresh();
+        } catch (IOException e) {
+            synchronized (LogAppender.class) {
+                failure = e;
+                failedFrom = first;
+                failedThrough = last;
+            }
+            throw e;
+        } finally {
+            synchronized (LogAppender.class) {
+                writing = false;
+                committed = last;
+                LogAppender.class.notifyAll();
+            }
+        }
+    }
+
+    private static void write(List<String> records) throws IOException {
+        long started = RunStats.start();
+        AppendEvent event = RunStats.isRecording() ? new AppendEvent() : null;
+        if (event != null)
+            event.begin();
+        long bytes = 0;
+        if (durability == null)
+            durability = Durability.fromEnvironment();
+        FileChannel log = open();
+        if (durability == Durability.RECORD) {
+            for (String record : records) {
+                bytes += writeFully(log, ByteBuffer.wrap(
+                                    record.getBytes(LogReader.CHARSET)));
+                log.force(false);
+            }
+        } else {
+            StringBuilder group = new StringBuilder();
+            for (String record : records) {
+                group.append(record);
+            }
+            bytes = writeFully(log, ByteBuffer.wrap(
+                            group.toString().getBytes(LogReader.CHARSET)));
+            if (durability == Durability.BATCH)
+                log.force(false);
+        }
+        RunStats.record(StatsPhase.APPEND, started);
+        RunStats.addAppend(records.size(), bytes);
+        if (event != null && event.shouldCommit()) {
+            event.records = records.size();
+            event.bytes = bytes;
+            event.durability = durability.name();
+            event.commit();
+        }
+    }
+
+    private static int writeFully(FileChannel log, ByteBuffer buffer) 
+                                                        throws IOException {
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        return bytes;
+    }
+
+    private static synchronized FileChannel open() throws IOException {
+        Object key = FileUtil.getLogFileKey();
+        if (channel == null || !channel.isOpen() || key == null || 
+                !key.equals(channelKey)) {
+            if (channel != null)
+                channel.close();
+            channel = FileChannel.open(Path.of(TextLogEngine.LOGFILE), 
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.APPEND);
+            channelKey = FileUtil.getLogFileKey();
+        }
+        return channel;
+    }
+
+    public static synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
+
+class LogLock {
+    private static final String LOCK_FILE = "TM.lock";
+    private static final ReentrantLock threads = new ReentrantLock();
+    private static FileChannel channel;
+    private static FileLock lock;
+
+    public static void acquire() throws IOException {
+        threads.lock();
+        if (threads.getHoldCount() > 1)
+            return;
+        try {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(Path.of(LOCK_FILE), 
+                                           StandardOpenOption.CREATE, 
+                                           StandardOpenOption.WRITE);
+            }
+            lock = channel.lock();
+        } catch (IOException | RuntimeException e) {
+            threads.unlock();
+            throw e;
+        }
+    }
+
+    public static void release() throws IOException {
+        try {
+            if (threads.getHoldCount() == 1 && lock != null) {
+                lock.release();
+                lock = null;
+            }
+        } finally {
+            threads.unlock();
+        }
+    }
+}
+
+enum StatsPhase {
+    LOG_READ("log read"), TOKENIZE("tokenize"), REPLAY("replay"), 
+    EXECUTE("execute"), APPEND("append");
+
+    private final String label;
+
+    StatsPhase(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+}
+
+class RunStats {
+    private static final String STATS_FLAG = "--stats";
+    private static final LongAdder[] phaseNanos = 
+                                new LongAdder[StatsPhase.values().length];
+    private static final LongAdder linesRead = new LongAdder();
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder recordsAppended = new LongAdder();
+    private static final LongAdder bytesAppended = new LongAdder();
+    private static volatile boolean enabled;
+    private static long startNanos;
+    private static long startAllocated;
+    private static long endAllocated = -1;
+
+    static {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    public static String[] configure(String[] args) {
+        boolean flag = args.length > 0 && args[0].equalsIgnoreCase(STATS_FLAG);
+        String setting = System.getenv("TM_STATS");
+        if (flag || (setting != null && !setting.isBlank() && 
+                !setting.equals("0") && !setting.equalsIgnoreCase("off")))
+            enable();
+        return flag ? Arrays.copyOfRange(args, 1, args.length) : args;
+    }
+
+    public static void enable() {
+        if (enabled)
+            return;
+        startNanos = System.nanoTime();
+        startAllocated = allocatedBytes();
+        enabled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> 
+                                                report(System.err)));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Creating the first event initializes JFR, which takes longer than
+    // most commands, so events are only created once a recording exists.
+    public static boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    public static void finish() {
+        if (enabled)
+            endAllocated = allocatedBytes();
+    }
+
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void record(StatsPhase phase, long started) {
+        if (enabled)
+            phaseNanos[phase.ordinal()].add(System.nanoTime() - started);
+    }
+
+    public static void addScan(long lines, long bytes, long readNanos, 
+                               long tokenizeNanos) {
+        linesRead.add(lines);
+        bytesRead.add(bytes);
+        phaseNanos[StatsPhase.LOG_READ.ordinal()].add(readNanos);
+        phaseNanos[StatsPhase.TOKENIZE.ordinal()].add(tokenizeNanos);
+    }
+
+    public static void addAppend(int records, long bytes) {
+        if (!enabled)
+            return;
+        recordsAppended.add(records);
+        bytesAppended.add(bytes);
+    }
+
+    public static void report(PrintStream out) {
+        double wall = (System.nanoTime() - startNanos) / 1e6;
+        long allocated = endAllocated >= 0 ? endAllocated : allocatedBytes();
+        double scanMillis = millis(StatsPhase.LOG_READ) + 
+                            millis(StatsPhase.TOKENIZE);
+        double replayMillis = millis(StatsPhase.REPLAY);
+        double perSecondOver = replayMillis > 0 ? replayMillis : scanMillis;
+        long lines = linesRead.sum();
+        StringBuilder report = new StringBuilder("TM stats:\n");
+        report.append(String.format("  %-10s %10.1f ms  %,d bytes%n", 
+                        StatsPhase.LOG_READ.getLabel(), 
+                        millis(StatsPhase.LOG_READ), bytesRead.sum()));
+        report.append(String.format("  %-10s %10.1f ms  %,d lines%n", 
+                        StatsPhase.TOKENIZE.getLabel(), 
+                        millis(StatsPhase.TOKENIZE), lines));
+        report.append(String.format("  %-10s %10.1f ms  %,.0f lines/s%n", 
+                        StatsPhase.REPLAY.getLabel(), replayMillis, 
+                        perSecondOver > 0 ? lines * 1000 / perSecondOver 
+                                          : 0.0));
+        report.append(String.format("  %-10s %10.1f ms%n", 
+                        StatsPhase.EXECUTE.getLabel(), 
+                        millis(StatsPhase.EXECUTE)));
+        report.append(String.format("  %-10s %10.1f ms  %,d records, " +
+                        "%,d bytes%n", StatsPhase.APPEND.getLabel(), 
+                        millis(StatsPhase.APPEND), recordsAppended.sum(), 
+                        bytesAppended.sum()));
+        if (allocated >= 0 && startAllocated >= 0) {
+            report.append(String.format("  %-10s %10.1f MB%n", "allocated", 
+                            (allocated - startAllocated) / 1048576.0));
+        }
+        report.append(String.format("  %-10s %10.1f ms%n", "wall", wall));
+        out.print(report);
+        out.flush();
+    }
+
+    private static double millis(StatsPhase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1e6;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = 
+                                    ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean threads = 
+                                    (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || 
+                !threads.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(
+                                            threads.getAllThreadIds())) {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+}
+
+@Name("tm.LogScan")
+@Label("Log Scan")
+@Category("TM")
+@Description("One pass of a LogReader over a range of a log file")
+class LogScanEvent extends Event {
+    @Label("Lines")
+    long lines;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Read Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long readTime;
+
+    @Label("Tokenize Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long tokenizeTime;
+}
+
+@Name("tm.Replay")
+@Label("Replay")
+@Category("TM")
+@Description("Loading the task state, in full or for a single task")
+class ReplayEvent extends Event {
+    @Label("Scope")
+    String scope;
+
+    @Label("Lines")
+    int lines;
+
+    @Label("Tasks")
+    int tasks;
+}
+
+@Name("tm.Execute")
+@Label("Execute")
+@Category("TM")
+@Description("Running one command after its state has been loaded")
+class ExecuteEvent extends Event {
+    @Label("Command")
+    String command;
+}
+
+@Name("tm.Append")
+@Label("Append")
+@Category("TM")
+@Description("One group of records written to TM.log")
+class AppendEvent extends Event {
+    @Label("Records")
+    int records;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Durability")
+    String durability;
+}
+
+interface RecordReader extends Closeable {
+    String[] next() throws IOException;
+}
+
+class LogReader implements RecordReader {
+    public static final Charset CHARSET = Charset.defaultCharset();
+    private static final int BUFFER_SIZE = 1 << 20;
+    private final ReadableByteChannel channel;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private final String[] fields = new String[8];
+    private final boolean partialLine;
+    private long bufferOffset;
+    private long remaining;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    private long recordOffset;
+    private final LogScanEvent scan = RunStats.isRecording() 
+                                      ? new LogScanEvent() : null;
+    private final boolean timed;
+    private long lines;
+    private long bytes;
+    private long readNanos;
+    private long tokenizeNanos;
+
+    public LogReader(ReadableByteChannel channel, long offset, long length, 
+                     boolean partialLine) {
+        this.channel = channel;
+        this.bufferOffset = offset;
+        this.remaining = length;
+        this.partialLine = partialLine;
+        this.timed = RunStats.isEnabled() || (scan != null && scan.isEnabled());
+        if (scan != null)
+            scan.begin();
+    }
+
+    public long getOffset() {
+        return this.bufferOffset + this.position;
+    }
+
+    public long getRecordOffset() {
+        return this.recordOffset;
+    }
+
+    @Override
+    public String[] next() throws IOException {
+        int scan = position;
+        while (true) {
+            while (scan < limit && buffer[scan] != '\n' && 
+                    buffer[scan] != '\r') {
+                scan++;
+            }
+            if (scan == limit && !endOfInput) {
+                scan -= position;
+                fill();
+                continue;
+            }
+            if (position == limit || (scan == limit && !partialLine))
+                return null;
+            int start = position;
+            int end = scan;
+            position = scan < limit ? scan + 1 : scan;
+            scan = position;
+            while (start < end && (buffer[start] & 0xFF) <= ' ')
+                start++;
+            while (end > start && (buffer[end - 1] & 0xFF) <= ' ')
+                end--;
+            if (start < end) {
+                recordOffset = bufferOffset + start;
+                if (!timed)
+                    return tokenize(buffer, start, end, fields, CHARSET);
+                long started = System.nanoTime();
+                String[] logLine = tokenize(buffer, start, end, fields, 
+                                            CHARSET);
+                tokenizeNanos += System.nanoTime() - started;
+                lines++;
+                return logLine;
+            }
+        }
+    }
+
+    public static String[] readAt(FileChannel channel, long offset) 
+                                                        throws IOException {
+        long started = RunStats.start();
+        byte[] line = new byte[256];
+        int length = 0;
+        int end = -1;
+        while (end < 0) {
+            if (length == line.length)
+                line = Arrays.copyOf(line, length * 2);
+            int read = channel.read(ByteBuffer.wrap(line, length, 
+                                    line.length - length), offset + length);
+            if (read <= 0) {
+                end = length;
+                break;
+            }
+            for (int i = length; i < length + read && end < 0; i++) {
+                if (line[i] == '\n' || line[i] == '\r')
+                    end = i;
+            }
+            length += read;
+        }
+        int start = 0;
+        while (start < end && (line[start] & 0xFF) <= ' ')
+            start++;
+        while (end > start && (line[end - 1] & 0xFF) <= ' ')
+            end--;
+        long read = RunStats.start();
+        String[] logLine = tokenize(line, start, end, new String[8], CHARSET);
+        if (RunStats.isEnabled()) {
+            long tokenized = System.nanoTime();
+            RunStats.addScan(1, length, read - started, tokenized - read);
+        }
+        return logLine;
+    }
+
+    private void fill() throws IOException {
+        int pending = limit - position;
+        if (position == 0 && limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        } else {
+            System.arraycopy(buffer, position, buffer, 0, pending);
+        }
+        bufferOffset += position;
+        position = 0;
+        limit = pending;
+        if (remaining == 0) {
+            endOfInput = true;
+            return;
+        }
+        int request = (int) Math.min(buffer.length - limit, remaining);
+        long started = timed ? System.nanoTime() : 0;
+        int read = channel.read(ByteBuffer.wrap(buffer, limit, request));
+        if (timed) {
+            readNanos += System.nanoTime() - started;
+            bytes += Math.max(read, 0);
+        }
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+            remaining -= read;
+        }
+    }
+
+    protected static String[] tokenize(byte[] line, int from, int to, 
+                                       String[] scratch, Charset charset) {
+        int count = 0;
+        int pos = from;
+        while (pos < to) {
+            int tokenStart = pos;
+            int tokenEnd;
+            if (line[pos] == '"') {
+                int close = pos + 2;
+                while (close < to && line[close] != '"')
+                    close++;
+                if (close >= to) {
+                    pos++;
+                    continue;
+                }
+                tokenStart = pos + 1;
+                tokenEnd = close;
+                pos = close + 1;
+            } else {
+                tokenEnd = pos + 1;
+                while (tokenEnd < to && !isWhitespace(line[tokenEnd]))
+                    tokenEnd++;
+                pos = tokenEnd;
+            }
+            if (count == scratch.length)
+                scratch = Arrays.copyOf(scratch, count * 2);
+            scratch[count++] = decode(line, tokenStart, tokenEnd, charset);
+            while (pos < to && isWhitespace(line[pos]))
+                pos++;
+        }
+        return Arrays.copyOf(scratch, count);
+    }
+
+    private static String decode(byte[] line, int from, int to, 
+                                 Charset charset) {
+        int quotes = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] == '"')
+                quotes++;
+        }
+        if (quotes == 0)
+            return new String(line, from, to - from, charset).toUpperCase();
+        byte[] stripped = new byte[to - from - quotes];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] != '"')
+                stripped[length++] = line[i];
+        }
+        return new String(stripped, 0, length, charset).toUpperCase();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || 
+               b == '\f' || b == '\r';
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (RunStats.isEnabled())
+            RunStats.addScan(lines, bytes, readNanos, tokenizeNanos);
+        if (scan != null && scan.shouldCommit()) {
+            scan.lines = lines;
+            scan.bytes = bytes;
+            scan.readTime = readNanos;
+            scan.tokenizeTime = tokenizeNanos;
+            scan.commit();
+        }
+    }
+}
+
+class TaskManager {
+    private static TaskManager instance;
+    private Map<CommandType, Command> commandMap; 
+    private TaskMap taskMap;
+    private long loadedLength;
+    private int dispatchDepth;
+    private final StorageEngine storage;
+    
+    private TaskManager() throws IOException {
+        this.storage = Storage.getEngine();
+        try {
+            storage.open();
+        } catch (IOException e) {
+            System.out.println("Error creating log file");
+            System.exit(1);
+        }
+        this.commandMap = CommandMapFactory.createCommandMap();
+    }
+
+    public void run(String[] input) throws IOException {
+        int status = execute(input);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    public int execute(String[] input) throws IOException {
+        try {
+            dispatch(input);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    public void dispatch(String[] input) throws IOException {
+        CommandType action = CommandType.parse(input[0].toUpperCase());
+        Command command = commandMap.get(action);
+        command.checkCommandFormat(input);
+        StateRequirement required = command.requiredState(input);
+        long loading = RunStats.start();
+        TaskMap state = loadState(required, input);
+        if (dispatchDepth == 0)
+            RunStats.record(StatsPhase.REPLAY, loading);
+        long started = RunStats.start();
+        ExecuteEvent event = RunStats.isRecording() ? new ExecuteEvent() 
+                                                    : null;
+        if (event != null)
+            event.begin();
+        dispatchDepth++;
+        try {
+            if (!command.writesLog()) {
+                command.execute(input, state);
+                return;
+            }
+            LogLock.acquire();
+            try {
+                command.execute(input, catchUp(required, input, state));
+            } finally {
+                LogLock.release();
+            }
+        } finally {
+            if (--dispatchDepth == 0)
+                RunStats.record(StatsPhase.EXECUTE, started);
+            if (event != null && event.shouldCommit()) {
+                event.command = action.name();
+                event.commit();
+            }
+        }
+    }
+
+    private TaskMap catchUp(StateRequirement required, String[] input, 
+                            TaskMap state) throws IOException {
+        if (this.taskMap != null) {
+            storage.catchUp();
+            return this.taskMap;
+        }
+        if (required == StateRequirement.NONE || 
+                storage.getLength() == this.loadedLength)
+            return state;
+        return loadState(required, input);
+    }
+
+    private TaskMap loadState(StateRequirement required, String[] input) 
+                                                        throws IOException {
+        if (this.taskMap != null)
+            return this.taskMap;
+        if (required == StateRequirement.NONE)
+            return new TaskMap();
+        this.loadedLength = storage.getLength();
+        TaskMap partial = null;
+        if (required == StateRequirement.RUNNING_TASK) {
+            partial = storage.loadRunningTask(commandMap);
+        } else if (required == StateRequirement.SINGLE_TASK) {
+            partial = storage.loadTask(commandMap, input[1].toUpperCase());
+        }
+        if (partial != null)
+            return partial;
+        this.taskMap = storage.load(commandMap);
+        return this.taskMap;
+    }
+
+    public TaskMap loadTaskMap() throws IOException {
+        return loadState(StateRequirement.FULL, null);
+    }
+
+    public static TaskManager getInstance() throws IOException {
+        if(instance == null) {
+            instance = new TaskManager();
+        }
+        return instance;
+    }
+
+    public static void reset() {
+        instance = null;
+    }
+}
+
+class Task {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private String name, description;
+    private char size;
+    private long startSecond;
+    private int startNano;
+    private long totalSeconds;
+    private int totalNanos;
+    private boolean isRunning;
 
     public Task(String name) {
         this.name = name;
-        this.start = null;
         this.isRunning = false;
-        this.totalTime = Duration.ZERO;
         this.description = "N/A";
-        this.size = "N/A";
+        this.size = SizeUtil.NOT_APPLICABLE;
+    }
+
+    public Task(String name, String description, String size, 
+                Duration totalTime, LocalDateTime start) {
+        this.name = name;
+        this.description = description.intern();
+        this.size = SizeUtil.codeOf(size);
+        this.totalSeconds = totalTime.getSeconds();
+        this.totalNanos = totalTime.getNano();
+        this.isRunning = start != null;
+        if (start != null) {
+            this.startSecond = start.toEpochSecond(ZoneOffset.UTC);
+            this.startNano = start.getNano();
+        }
+    }
+
+    public void updateName(String newTaskName) {
+        this.name = newTaskName;
+    }
+
+    public void updateStart(long epochSecond, int nano) {
+        if (isRunning) {
+            throw new IllegalStateException("Task " + this.name + 
+                                            " is already running, error");
+        }
+        this.startSecond = epochSecond;
+        this.startNano = nano;
+        this.isRunning = true;
+    }
+
+    public void updateStop(long epochSecond, int nano) {
+        if (!isRunning) {
+            throw new IllegalStateException("Task " + this.name + 
+                                " cannot stop since it has not started, error");
+        }
+        addTime(Math.subtractExact(epochSecond, startSecond), 
+                (long) nano - startNano);
+        this.isRunning = false;
+    }
+
+    public void addTime(Duration duration) {
+        addTime(duration.getSeconds(), duration.getNano());
+    }
+
+    private void addTime(long seconds, long nanos) {
+        nanos += totalNanos;
+        totalSeconds = Math.addExact(totalSeconds, Math.addExact(seconds, 
+                                    Math.floorDiv(nanos, NANOS_PER_SECOND)));
+        totalNanos = (int) Math.floorMod(nanos, NANOS_PER_SECOND);
+    }
+
+    public void updateDescription(String description) {
+        this.description = description.intern();
+    }
+
+    public void updateSize(String taskSize) {
+        this.size = SizeUtil.codeOf(taskSize);
+    }
+
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(128);
+        appendSummary(summary, getDuration());
+        return summary.toString();
+    }
+
+    public void appendSummary(StringBuilder summary, Duration duration) {
+        summary.append("Summary for Task  \t:\t ").append(this.name)
+               .append("\nDescription     \t:\t ").append(this.description)
+               .append("\nTotal Time Spent\t:\t ");
+        DurationUtil.appendTotalTime(summary, duration);
+        summary.append("\nTask Size       \t:\t ").append(getSize())
+               .append('\n');
+    }
+
+    public String getSize() {
+        return SizeUtil.nameOf(this.size);
+    }
+
+    public Task copy() {
+        return new Task(this.name, this.description, getSize(), 
+                        getAccumulatedTime(), getStartTime());
+    }
+
+    public String getTaskName() {
+        return this.name;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public LocalDateTime getStartTime() {
+        if (!this.isRunning)
+            return null;
+        return LocalDateTime.ofEpochSecond(startSecond, startNano, 
+                                           ZoneOffset.UTC);
+    }
+
+    public Duration getAccumulatedTime() {
+        return Duration.ofSeconds(totalSeconds, totalNanos);
+    }
+
+    public Duration getDuration() {
+        return getDuration(LocalDateTime.now());
+    }
+
+    public Duration getDuration(LocalDateTime now) {
+        if (this.isRunning) {
+            long nanos = (long) totalNanos + now.getNano() - startNano;
+            return Duration.ofSeconds(Math.addExact(totalSeconds, 
+                    Math.subtractExact(now.toEpochSecond(ZoneOffset.UTC), 
+                                       startSecond)), nanos);
+        }
+        return getAccumulatedTime();
+    }
+
+    public boolean isRunning() {
+        return this.isRunning;
+    }
+}
+
+class DurationUtil {
+    protected static String formatTotalTime(Duration duration){
+        StringBuilder time = new StringBuilder(8);
+        appendTotalTime(time, duration);
+        return time.toString();
+    }
+
+    protected static void appendTotalTime(StringBuilder time, 
+                                          Duration duration) {
+        appendTwoDigits(time, duration.toHours()).append(':');
+        appendTwoDigits(time, duration.toMinutesPart()).append(':');
+        appendTwoDigits(time, duration.toSecondsPart());
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder time, 
+                                                 long value) {
+        if (value >= 0 && value < 10)
+            time.append('0');
+        return time.append(value);
+    }
+}
+
+class SizeUtil {
+    public static final char NOT_APPLICABLE = 4;
+    private static volatile String[] names = {"S", "M", "L", "XL", "N/A"};
+    private static final Map<String, Character> customCodes = 
+                                                        new HashMap<>();
+
+    public static char codeOf(String size) {
+        switch (size) {
+            case "S": return 0;
+            case "M": return 1;
+            case "L": return 2;
+            case "XL": return 3;
+            case "N/A": return NOT_APPLICABLE;
+            default: return customCodeOf(size);
+        }
+    }
+
+    public static String nameOf(char code) {
+        return names[code];
+    }
+
+    private static synchronized char customCodeOf(String size) {
+        Character code = customCodes.get(size);
+        if (code == null) {
+            if (names.length > Character.MAX_VALUE) {
+                throw new IllegalStateException("Too many distinct task " + 
+                                                "sizes");
+            }
+            code = (char) names.length;
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[code] = size;
+            customCodes.put(size, code);
+            names = grown;
+        }
+        return code;
+    }
+}
+
+class TimestampUtil {
+    private static final int SHORT_LENGTH = "yyyy-MM-ddTHH:mm".length();
+    private static final int FULL_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+
+    public static long toEpochSecond(String text) {
+        int length = text.length();
+        if ((length == SHORT_LENGTH || length == FULL_LENGTH) && 
+                text.charAt(4) == '-' && text.charAt(7) == '-' && 
+                text.charAt(10) == 'T' && text.charAt(13) == ':' && 
+                (length == SHORT_LENGTH || text.charAt(16) == ':')) {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 2);
+            int day = digits(text, 8, 2);
+            int hour = digits(text, 11, 2);
+            int minute = digits(text, 14, 2);
+            int second = length == FULL_LENGTH ? digits(text, 17, 2) : 0;
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && 
+                    day <= lengthOfMonth(year, month) && hour >= 0 && 
+                    hour <= 23 && minute >= 0 && minute <= 59 && 
+                    second >= 0 && second <= 59) {
+                return epochDay(year, month, day) * 86400 + 
+                       hour * 3600 + minute * 60 + second;
+            }
+        }
+        return LocalDateTime.parse(text).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static int nanoOf(String text) {
+        if (text.length() <= FULL_LENGTH)
+            return 0;
+        return LocalDateTime.parse(text).getNano();
+    }
+
+    private static int digits(String text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || 
+                                             year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 
+                                                                      : 31;
+    }
+
+    private static long epochDay(int year, int month, int day) {
+        if (month <= 2)
+            year--;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 
+                         + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + 
+                        dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
+
+// The tasks a storage engine has replayed, with the running tasks and
+// the duration aggregates kept in step as records are applied. Each
+// engine keeps its own and hands it to the commands it loads for.
+class TaskMap extends HashMap<String, Task> {
+    private final Set<Task> runningTasks = new LinkedHashSet<>();
+    private final TaskAggregates aggregates = new TaskAggregates(this);
+    private Map<CommandType, Command> commandMap;
+    private boolean deferIndexes;
+
+    public void reset(Map<CommandType, Command> commands) {
+        commandMap = commands;
+        clear();
+        runningTasks.clear();
+        aggregates.clear();
+    }
+
+    public Map<CommandType, Command> getCommandMap() {
+        return commandMap;
+    }
+
+    // While deferred, records are applied without keeping the running
+    // tasks and aggregates up to date; rebuildIndexes catches them up.
+    public void setDeferIndexes(boolean defer) {
+        deferIndexes = defer;
+    }
+
+    public void apply(String[] logLine) {
+        CommandType action = CommandType.parse(logLine[1]);
+        String taskName = logLine[2];
+        Task existingTask = get(taskName);
+        Command command = commandMap.get(action);
+
+        if (existingTask == null){
+            Task returnedTask = command.parseLine(logLine, null);
+            put(taskName, returnedTask);
+            if (!deferIndexes)
+                trackTask(returnedTask);
+        }
+        else {
+            removeExistingTask(logLine, existingTask, command);
+        }
+    }
+
+    private void removeExistingTask(String[] logLine, Task existingTask, 
+                                    Command command) {
+        String nameToRemove = existingTask.getTaskName();
+        if (!deferIndexes)
+            aggregates.remove(existingTask);
+        Task returnedTask;
+        try {
+            returnedTask = command.parseLine(logLine, existingTask);
+        } catch (RuntimeException e) {
+            if (!deferIndexes)
+                aggregates.add(existingTask);
+            throw e;
+        }
+        if (returnedTask != null) {
+            Task displaced = put(returnedTask.getTaskName(), returnedTask);
+            remove(nameToRemove);
+            if (displaced != null && displaced != returnedTask && 
+                    returnedTask.getTaskName() != null && !deferIndexes) {
+                runningTasks.remove(displaced);
+                aggregates.remove(displaced);
+            }
+        }
+        if (!deferIndexes)
+            trackTask(existingTask);
+    }
+
+    private void trackTask(Task task) {
+        boolean live = task.getTaskName() != null && 
+                       get(task.getTaskName()) == task;
+        if (live)
+            aggregates.add(task);
+        if (live && task.isRunning()) {
+            runningTasks.add(task);
+        } else {
+            runningTasks.remove(task);
+        }
+    }
+
+    public void rebuildIndexes() {
+        runningTasks.clear();
+        for (Task task : values()) {
+            if (task.isRunning())
+                runningTasks.add(task);
+        }
+        aggregates.rebuild(values());
+    }
+
+    public Task getRunningTask() {
+        return runningTasks.isEmpty() ? null : runningTasks.iterator().next();
+    }
+
+    public Set<Task> getRunningTasks() {
+        return Collections.unmodifiableSet(runningTasks);
+    }
+
+    public Set<String> getSizes() {
+        return aggregates.getSizes();
+    }
+
+    public TaskStatistics statistics(String size) {
+        return aggregates.statistics(size);
+    }
+
+    public DurationHistogram histogram(String size) {
+        return aggregates.histogram(size);
+    }
+}
+
+class TaskMapProcessor {
+    private static final TaskMap taskMap = new TaskMap();
+    private static long logOffset;
+    private static int lineNumber;
+    private static final int SNAPSHOT_INTERVAL = 1000;
+
+    public static TaskMap createTaskMap(Map <CommandType, Command> commands) 
+                                                        throws IOException {
+        ReplayEvent event = RunStats.isRecording() ? new ReplayEvent() : null;
+        if (event != null)
+            event.begin();
+        try {
+            return loadTaskMap(commands);
+        } finally {
+            if (event != null && event.shouldCommit()) {
+                event.scope = "full";
+                event.lines = lineNumber;
+                event.tasks = taskMap.size();
+                event.commit();
+            }
+        }
+    }
+
+    private static TaskMap loadTaskMap(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        while (true) {
+            int segments = SegmentUtil.readManifest().size();
+            try {
+                if (load(commands) || SegmentUtil.isUnchanged(segments))
+                    return taskMap;
+            } catch (NoSuchFileException e) {
+                if (SegmentUtil.isUnchanged(segments))
+                    throw e;
+            }
+        }
+    }
+
+    private static boolean load(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        taskMap.reset(commands);
+        logOffset = 0;
+        lineNumber = 0;
+        SegmentUtil.recover();
+        Snapshot snapshot = SnapshotUtil.readSnapshot(FileUtil.getLogLength());
+        if (snapshot != null) {
+            taskMap.putAll(snapshot.getTasks());
+            logOffset = snapshot.getLogOffset();
+            lineNumber = snapshot.getLineCount();
+        } else {
+            taskMap.putAll(SegmentUtil.readActiveState());
+        }
+        int replayedLines;
+        taskMap.setDeferIndexes(true);
+        try {
+            replayedLines = snapshot == null ? replayBinary() : 0;
+            replayedLines += replay(true);
+        } finally {
+            taskMap.setDeferIndexes(false);
+        }
+        taskMap.rebuildIndexes();
+        if (SegmentUtil.isRotationDue(logOffset) && rotate()) {
+            logOffset = 0;
+            lineNumber = 0;
+            SegmentUtil.compressSealed();
+            return true;
+        } else if (replayedLines > 0 && (snapshot == null || 
+                replayedLines >= SNAPSHOT_INTERVAL) && 
+                FileUtil.isLineTerminated(logOffset)) {
+            SnapshotUtil.writeSnapshot(taskMap, logOffset, lineNumber);
+        }
+        return false;
+    }
+
+    private static boolean rotate() throws IOException {
+        LogLock.acquire();
+        try {
+            if (logOffset != FileUtil.getLogLength() || 
+                    !FileUtil.isLineTerminated(logOffset))
+                return false;
+            SegmentUtil.rotate(taskMap);
+            return true;
+        } finally {
+            LogLock.release();
+        }
+    }
+
+    public static TaskMap loadTask(Map<CommandType, Command> commands, 
+                                   String name) throws IOException {
+        ReplayEvent event = RunStats.isRecording() ? new ReplayEvent() : null;
+        if (event != null)
+            event.begin();
+        TaskMap loaded = null;
+        try {
+            loaded = loadIndexedTask(commands, name);
+            return loaded;
+        } finally {
+            if (event != null && event.shouldCommit()) {
+                event.scope = loaded == null ? "task fallback" : "task";
+                event.lines = lineNumber;
+                event.tasks = loaded == null ? 0 : loaded.size();
+                event.commit();
+            }
+        }
+    }
+
+    private static TaskMap loadIndexedTask(Map<CommandType, Command> 
+                                commands, String name) throws IOException {
+        IndexedRecords indexed = OffsetIndex.readRecords(name);
+        if (indexed == null)
+            return null;
+        logOffset = 0;
+        lineNumber = indexed.getRecords().size();
+        return loadRecords(taskMap, commands, name, indexed);
+    }
+
+    // Builds only the named task from the records that touched it, as the
+    // task index or a storage engine hands them over. Returns null when
+    // they do not give that task, so the caller falls back to a full load.
+    public static TaskMap loadRecords(TaskMap taskMap, Map<CommandType, 
+                Command> commands, String name, IndexedRecords indexed) 
+                                                        throws IOException {
+        List<String[]> records = indexed.getRecords();
+        taskMap.reset(commands);
+        if (indexed.isFromBase()) {
+            String baseName = records.isEmpty() ? name : records.get(0)[2];
+            Task base = SegmentUtil.readActiveState().get(baseName);
+            if (base == null)
+                return null;
+            taskMap.put(baseName, base);
+        }
+        taskMap.rebuildIndexes();
+        try {
+            for (String[] logLine : records) {
+                taskMap.apply(logLine);
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        taskMap.keySet().retainAll(Set.of(name));
+        if ((!records.isEmpty() || indexed.isFromBase()) && taskMap.isEmpty())
+            return null;
+        taskMap.rebuildIndexes();
+        return taskMap;
+    }
+
+    public static TaskMap loadRunningTask(Map<CommandType, Command> commands) 
+                                                        throws IOException {
+        List<String> running = OffsetIndex.readRunningTasks();
+        if (running == null)
+            return null;
+        if (!running.isEmpty()) {
+            TaskMap single = loadTask(commands, running.get(0));
+            return single == null || single.getRunningTask() == null 
+                   ? null : single;
+        }
+        taskMap.reset(commands);
+        logOffset = 0;
+        lineNumber = 0;
+        return taskMap;
+    }
+
+    public static void catchUp() throws IOException {
+        if (FileUtil.getLogLength() < logOffset) {
+            createTaskMap(taskMap.getCommandMap());
+        } else {
+            replay(false);
+        }
+    }
+
+    public static void applyRecord(LogRecord record) {
+        lineNumber++;
+        taskMap.apply(record.getFields());
+        taskMap.remove(null);
+    }
+
+    // Replays every record the reader gives into the task map, which is
+    // emptied first.
+    public static TaskMap loadFrom(TaskMap taskMap, Map<CommandType, 
+                Command> commands, RecordReader reader) throws IOException {
+        taskMap.reset(commands);
+        taskMap.setDeferIndexes(true);
+        int line = 0;
+        try (reader) {
+            String[] logLine;
+            while ((logLine = reader.next()) != null) {
+                applyLine(taskMap, logLine, ++line);
+            }
+        } finally {
+            taskMap.setDeferIndexes(false);
+        }
+        taskMap.remove(null);
+        taskMap.rebuildIndexes();
+        return taskMap;
+    }
+
+    public static TaskMap reload() throws IOException {
+        return createTaskMap(taskMap.getCommandMap());
+    }
+
+    public static Map<CommandType, Command> getCommandMap() {
+        return taskMap.getCommandMap();
+    }
+
+    public static int getLineCount() {
+        return lineNumber;
+    }
+
+    public static long getLogOffset() {
+        return logOffset;
+    }
+
+    public static void advanceTo(long offset) {
+        logOffset = offset;
+    }
+
+    private static int replay(boolean partialLine) throws IOException {
+        int firstLine = lineNumber;
+        long logLength = FileUtil.getLogLength();
+        try (LogReader reader = FileUtil.openLog(logOffset, logLength, 
+                                                 partialLine)) {
+            if (ParallelReplayProcessor.isWorthwhile(logLength - logOffset)) {
+                lineNumber = ParallelReplayProcessor.replay(reader, taskMap, 
+                                    taskMap.getCommandMap(), lineNumber);
+                taskMap.rebuildIndexes();
+            } else {
+                try {
+                    replayRecords(reader);
+                } catch (IllegalStateException e) {
+                    // The lines before the bad one stay applied, and the
+                    // next catch-up starts again at the bad one.
+                    logOffset = reader.getRecordOffset();
+                    lineNumber--;
+                    throw e;
+                }
+            }
+            logOffset = reader.getOffset();
+        }
+        taskMap.remove(null);
+        return lineNumber - firstLine;
+    }
+
+    private static int replayBinary() throws IOException {
+        try (BinaryLogReader reader = BinaryLogUtil.open(
+                                            FileUtil.getLogLength())) {
+            if (reader == null)
+                return 0;
+            replayRecords(reader);
+            logOffset = reader.getSourceLength();
+        } catch (StreamCorruptedException e) {
+            System.err.println("Ignoring corrupt " + 
+                               BinaryLogUtil.BINARY_FILE + ": " + 
+                               e.getMessage());
+            taskMap.clear();
+            taskMap.putAll(SegmentUtil.readActiveState());
+            logOffset = 0;
+            lineNumber = 0;
+        }
+        taskMap.remove(null);
+        return lineNumber;
+    }
+
+    private static void replayRecords(RecordReader reader) 
+                                                        throws IOException {
+        String[] logLine;
+        while ((logLine = reader.next()) != null) {
+            lineNumber++;
+            applyLine(taskMap, logLine, lineNumber);
+        }
+    }
+
+    public static void applyLine(TaskMap taskMap, String[] logLine, 
+                                 int lineNumber) {
+        try {
+            taskMap.apply(logLine);
+        } catch (IllegalStateException | ArrayIndexOutOfBoundsException e) {
+            failReplay(e, lineNumber);
+        }
+    }
+
+    // Reported by TaskManager.execute like any other command error, so
+    // the command line exits with status 1 and the daemon answers the
+    // request with status 1 and keeps running.
+    protected static void failReplay(RuntimeException e, int lineNumber) {
+        if (e instanceof IllegalStateException) {
+            throw new IllegalStateException(e.getMessage() + " at line " + 
+                                            lineNumber);
+        } else if (e instanceof ArrayIndexOutOfBoundsException) {
+            throw new IllegalStateException("Invalid log line at line " + 
+                                            lineNumber);
+        }
+        throw e;
+    }
+}
+
+class Snapshot {
+    private final long logOffset;
+    private final int lineCount;
+    private final Map<String, Task> tasks;
+
+    public Snapshot(long logOffset, int lineCount, Map<String, Task> tasks) {
+        this.logOffset = logOffset;
+        this.lineCount = lineCount;
+        this.tasks = tasks;
+    }
+
+    public long getLogOffset() {
+        return this.logOffset;
+    }
+
+    public int getLineCount() {
+        return this.lineCount;
+    }
+
+    public Map<String, Task> getTasks() {
+        return this.tasks;
+    }
+}
+
+class SnapshotUtil {
+    private static final String SNAPSHOT_FILE = "TM.snapshot";
+    private static final int MAGIC = 0x544D534E;
+    private static final int VERSION = 1;
+    private static final int CHECK_SPAN = 4096;
+
+    public static Snapshot readSnapshot(long logLength) {
+        File file = new File(SNAPSHOT_FILE);
+        if (!file.exists())
+            return null;
+        try {
+            return read(file.toPath(), logLength);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static Map<String, Task> readState(Path path) throws IOException {
+        if (!Files.exists(path))
+            return new HashMap<>();
+        try {
+            Snapshot state = read(path, -1);
+            if (state != null)
+                return state.getTasks();
+        } catch (RuntimeException e) {
+        }
+        throw new IOException("Corrupt state file " + path);
+    }
+
+    public static void writeState(Path path, Map<String, Task> taskMap) 
+                                                        throws IOException {
+        Path temp = Path.of(path + ".tmp");
+        Files.write(temp, encode(taskMap, 0, 0, 0));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Snapshot read(Path path, long logLength) 
+                                                        throws IOException {
+        byte[] contents = Files.readAllBytes(path);
+        if (contents.length < Long.BYTES)
+            return null;
+        int bodyLength = contents.length - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, bodyLength);
+        if (ByteBuffer.wrap(contents, bodyLength, Long.BYTES).getLong() 
+                != crc.getValue())
+            return null;
+        return decode(new DataInputStream(new ByteArrayInputStream(contents,
+                                                0, bodyLength)), logLength);
+    }
+
+    private static Snapshot decode(DataInputStream in, long logLength) 
+                                                        throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            return null;
+        long logOffset = in.readLong();
+        int lineCount = in.readInt();
+        long logChecksum = in.readLong();
+        if (logLength >= 0 && (logOffset > logLength || 
+                FileUtil.checksumBefore(logOffset, CHECK_SPAN) != logChecksum))
+            return null;
+        int taskCount = in.readInt();
+        Map<String, Task> tasks = new HashMap<>();
+        for (int i = 0; i < taskCount; i++) {
+            String name = in.readUTF();
+            String description = in.readUTF();
+            String size = in.readUTF();
+            Duration totalTime = Duration.ofSeconds(in.readLong(), 
+                                                    in.readInt());
+            LocalDateTime start = null;
+            if (in.readBoolean()) {
+                start = LocalDateTime.ofEpochSecond(in.readLong(), 
+                                                in.readInt(), ZoneOffset.UTC);
+            }
+            tasks.put(name, new Task(name, description, size, totalTime, 
+                                     start));
+        }
+        return new Snapshot(logOffset, lineCount, tasks);
+    }
+
+    public static void deleteSnapshot() throws IOException {
+        Files.deleteIfExists(Path.of(SNAPSHOT_FILE));
+    }
+
+    public static void writeSnapshot(Map<String, Task> taskMap, 
+                                     long logOffset, int lineCount) {
+        Path target = Path.of(SNAPSHOT_FILE);
+        Path temp = Path.of(SNAPSHOT_FILE + ".tmp");
+        try {
+            Files.write(temp, encode(taskMap, logOffset, lineCount, 
+                        FileUtil.checksumBefore(logOffset, CHECK_SPAN)));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static byte[] encode(Map<String, Task> taskMap, long logOffset, 
+                                 int lineCount, long logChecksum) 
+                                                        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(logOffset);
+        out.writeInt(lineCount);
+        out.writeLong(logChecksum);
+        out.writeInt(taskMap.size());
+        for (Task task : taskMap.values()) {
+            out.writeUTF(task.getTaskName());
+            out.writeUTF(task.getDescription());
+            out.writeUTF(task.getSize());
+            out.writeLong(task.getAccumulatedTime().getSeconds());
+            out.writeInt(task.getAccumulatedTime().getNano());
+            out.writeBoolean(task.isRunning());
+            if (task.isRunning()) {
+                out.writeLong(task.getStartTime()
+                                  .toEpochSecond(ZoneOffset.UTC));
+                out.writeInt(task.getStartTime().getNano());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
+
+class BinaryLogUtil {
+    public static final String BINARY_FILE = "TM.bin";
+    private static final int MAGIC = 0x544D424E;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int CHECK_SPAN = 4096;
+
+    public static BinaryLogReader open(long logLength) throws IOException {
+        Path path = Path.of(BINARY_FILE);
+        if (!Files.exists(path))
+            return null;
+        FileChannel channel = FileChannel.open(path);
+        try {
+            ByteBuffer header = readHeader(channel);
+            if (header != null && matchesLog(header, logLength)) {
+                BinaryLogReader reader = new BinaryLogReader(channel, 
+                                            header.getLong(8), 
+                                            channel.size() - HEADER_SIZE, 
+                                            header.getInt(28));
+                channel = null;
+                return reader;
+            }
+            return null;
+        } finally {
+            if (channel != null)
+                channel.close();
+        }
+    }
+
+    // TM.log is read as bytes, one line feed terminated line at a time,
+    // so that toText can give back exactly the same bytes.
+    public static int toBinary() throws IOException {
+        Path temp = Path.of(BINARY_FILE + ".tmp");
+        long logLength = FileUtil.getLogLength();
+        long sourceLength = 0;
+        int lines = 0;
+        int names;
+        try (InputStream in = Files.newInputStream(
+                                        Path.of(TextLogEngine.LOGFILE));
+             BinaryLogWriter writer = new BinaryLogWriter(temp, 
+                                                          HEADER_SIZE)) {
+            byte[] chunk = new byte[1 << 16];
+            byte[] line = new byte[256];
+            int length = 0;
+            long position = 0;
+            int read;
+            while (position < logLength && (read = in.read(chunk, 0, 
+                    (int) Math.min(chunk.length, logLength - position))) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] != '\n') {
+                        if (length == line.length)
+                            line = Arrays.copyOf(line, length * 2);
+                        line[length++] = chunk[i];
+                        continue;
+                    }
+                    writer.write(line, length);
+                    lines++;
+                    length = 0;
+                    sourceLength = position + i + 1;
+                }
+                position += read;
+            }
+            names = writer.getNameCount();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        writeHeader(temp, sourceLength, lines, names);
+        Files.move(temp, Path.of(BINARY_FILE), 
+                   StandardCopyOption.REPLACE_EXISTING, 
+                   StandardCopyOption.ATOMIC_MOVE);
+        return lines;
+    }
+
+    // When TM.log still holds the text TM.bin was made from, the rebuilt
+    // text must be byte for byte the same, or TM.log is not replaced.
+    public static int toText() throws IOException {
+        Path log = Path.of(TextLogEngine.LOGFILE);
+        Path temp = Path.of(TextLogEngine.LOGFILE + ".convert");
+        long logLength = Files.exists(log) ? Files.size(log) : 0;
+        BinaryLogReader reader = logLength == 0 ? openUnchecked() 
+                                                : open(logLength);
+        if (reader == null) {
+            throw new IllegalStateException(Files.exists(Path.of(
+                    BINARY_FILE)) ? BINARY_FILE + " was not converted from " +
+                    "the current " + TextLogEngine.LOGFILE + ", " + 
+                    TextLogEngine.LOGFILE + " was left unchanged" 
+                    : "No " + BINARY_FILE + " to convert");
+        }
+        int lines = 0;
+        long textLength;
+        try (reader; OutputStream writer = new BufferedOutputStream(
+                                    Files.newOutputStream(temp), 1 << 16)) {
+            byte[] line;
+            while ((line = reader.nextLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+                lines++;
+            }
+            writer.flush();
+            textLength = Files.size(temp);
+        }
+        if (logLength > 0 && (textLength != reader.getSourceLength() || 
+                              !startsWith(log, temp, textLength))) {
+            throw new IllegalStateException(BINARY_FILE + " does not " + 
+                    "convert back to the text of " + 
+                    TextLogEngine.LOGFILE + ", the " + 
+                    "converted text was left in " + temp + " and " + 
+                    TextLogEngine.LOGFILE + " was left unchanged");
+        }
+        try (FileChannel out = FileChannel.open(temp, 
+                                            StandardOpenOption.APPEND)) {
+            if (logLength > reader.getSourceLength()) {
+                try (FileChannel in = FileChannel.open(log)) {
+                    long position = reader.getSourceLength();
+                    while (position < logLength) {
+                        position += in.transferTo(position, 
+                                                  logLength - position, out);
+                    }
+                }
+            }
+            out.force(true);
+        }
+        LogAppender.close();
+        Files.move(temp, log, StandardCopyOption.REPLACE_EXISTING, 
+                   StandardCopyOption.ATOMIC_MOVE);
+        SnapshotUtil.deleteSnapshot();
+        OffsetIndex.delete();
+        writeHeader(Path.of(BINARY_FILE), textLength, lines, 
+                    reader.getNameCount());
+        return lines;
+    }
+
+    private static boolean startsWith(Path path, Path prefix, long length) 
+                                                        throws IOException {
+        try (InputStream a = new BufferedInputStream(
+                                    Files.newInputStream(path), 1 << 16);
+             InputStream b = new BufferedInputStream(
+                                    Files.newInputStream(prefix), 1 << 16)) {
+            for (long i = 0; i < length; i++) {
+                if (a.read() != b.read())
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static BinaryLogReader openUnchecked() throws IOException {
+        Path path = Path.of(BINARY_FILE);
+        if (!Files.exists(path))
+            return null;
+        FileChannel channel = FileChannel.open(path);
+        ByteBuffer header = readHeader(channel);
+        if (header == null) {
+            channel.close();
+            throw new IllegalStateException("Corrupt " + BINARY_FILE);
+        }
+        return new BinaryLogReader(channel, 0, channel.size() - HEADER_SIZE,
+                                   header.getInt(28));
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) 
+                                                        throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0)
+                return null;
+        }
+        header.flip();
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            return null;
+        return header;
+    }
+
+    private static boolean matchesLog(ByteBuffer header, long logLength) 
+                                                        throws IOException {
+        long sourceLength = header.getLong(8);
+        return sourceLength <= logLength && header.getLong(16) == 
+                FileUtil.checksumBefore(sourceLength, CHECK_SPAN);
+    }
+
+    private static void writeHeader(Path path, long sourceLength, int lines,
+                                    int names) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(sourceLength)
+              .putLong(FileUtil.checksumBefore(sourceLength, CHECK_SPAN))
+              .putInt(lines).putInt(names).flip();
+        try (FileChannel channel = FileChannel.open(path, 
+                                            StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+}
+
+class BinaryLogWriter implements Closeable {
+    protected static final int NAME_RECORD = 0xFF;
+    protected static final int RAW_RECORD = 0xFE;
+    private final OutputStream out;
+    private final Map<String, Integer> names = new HashMap<>();
+    private final byte[] body = new byte[1 << 16];
+    private final byte[] prefix = new byte[5];
+    private long lastSecond;
+
+    public BinaryLogWriter(Path path, int headerSize) throws IOException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(path), 
+                                            1 << 16);
+        this.out.write(new byte[headerSize]);
+    }
+
+    // Writes one line of TM.log, without its line feed. A line is stored
+    // as a timestamp, a command and dictionary ids only when writing those
+    // back gives the same bytes and the same tokens; any other line is
+    // stored as it was written.
+    public void write(byte[] line, int length) throws IOException {
+        if (writeFields(line, length))
+            return;
+        byte[] record = length + 1 <= body.length ? body 
+                                                  : new byte[length + 1];
+        record[0] = (byte) RAW_RECORD;
+        System.arraycopy(line, 0, record, 1, length);
+        writeRecord(record, length + 1);
+    }
+
+    private boolean writeFields(byte[] line, int length) throws IOException {
+        if (length == 0 || (line[0] & 0xFF) <= ' ' || 
+                (line[length - 1] & 0xFF) <= ' ')
+            return false;
+        String text = new String(line, 0, length, LogReader.CHARSET);
+        if (!Arrays.equals(text.getBytes(LogReader.CHARSET), 
+                           Arrays.copyOf(line, length)))
+            return false;
+        String[] parts = text.split("\t", -1);
+        if (parts.length < 3 || parts.length > 64)
+            return false;
+        CommandType type;
+        long second;
+        int nano;
+        try {
+            type = CommandType.parse(parts[1]);
+            second = TimestampUtil.toEpochSecond(parts[0]);
+            nano = TimestampUtil.nanoOf(parts[0]);
+        } catch (IllegalStateException | DateTimeException e) {
+            return false;
+        }
+        if (!parts[1].equals(LogRecord.label(type)) || 
+                !LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC)
+                              .toString().equals(parts[0]))
+            return false;
+        String[] tokens = LogReader.tokenize(line, 0, length, 
+                                    new String[8], LogReader.CHARSET);
+        if (tokens.length != parts.length)
+            return false;
+        String[] values = new String[parts.length - 2];
+        long quoted = 0;
+        for (int i = 0; i < values.length; i++) {
+            String part = parts[i + 2];
+            boolean isQuoted = part.length() > 2 && part.charAt(0) == '"' && 
+                               part.charAt(part.length() - 1) == '"';
+            values[i] = isQuoted ? part.substring(1, part.length() - 1) 
+                                 : part;
+            if (values[i].isEmpty() || values[i].indexOf('"') >= 0 || 
+                    (!isQuoted && values[i].chars().anyMatch(
+                                        c -> c <= ' ')) || 
+                    !tokens[i + 2].equals(values[i].toUpperCase()))
+                return false;
+            if (isQuoted)
+                quoted |= 1L << i;
+        }
+        int[] ids = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ids[i] = nameId(values[i]);
+        }
+        int size = 0;
+        body[size++] = (byte) type.ordinal();
+        size = putVarint(body, size, zigZag(second - lastSecond));
+        size = putVarint(body, size, nano);
+        size = putVarint(body, size, ids.length);
+        for (int id : ids) {
+            size = putVarint(body, size, id);
+        }
+        size = putVarint(body, size, quoted);
+        writeRecord(body, size);
+        lastSecond = second;
+        return true;
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+    private int nameId(String name) throws IOException {
+        Integer id = names.get(name);
+        if (id != null)
+            return id;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[bytes.length + 1];
+        record[0] = (byte) NAME_RECORD;
+        System.arraycopy(bytes, 0, record, 1, bytes.length);
+        writeRecord(record, record.length);
+        names.put(name, names.size());
+        return names.size() - 1;
+    }
+
+    private void writeRecord(byte[] record, int length) throws IOException {
+        out.write(prefix, 0, putVarint(prefix, 0, length));
+        out.write(record, 0, length);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int putVarint(byte[] target, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
+
+class BinaryLogReader implements RecordReader {
+    private static final CommandType[] TYPES = CommandType.values();
+    private final ReadableByteChannel channel;
+    private final long sourceLength;
+    private final List<String> names;
+    private final List<String> keys;
+    private final Deque<String[]> pending = new ArrayDeque<>();
+    private int[] ids = new int[8];
+    private int fieldCount;
+    private long quoted;
+    private byte[] buffer = new byte[1 << 20];
+    private long remaining;
+    private int position;
+    private int limit;
+    private int end;
+    private long second;
+    private int nano;
+    private long lines;
+    private long bytes;
+    private long readNanos;
+    private final byte[] stamp = new byte["yyyy-MM-ddTHH:mm:ss".length()];
+    private long stampDay = Long.MIN_VALUE;
+
+    public BinaryLogReader(ReadableByteChannel channel, long sourceLength, 
+                           long length, int nameCount) {
+        this.channel = channel;
+        this.sourceLength = sourceLength;
+        this.remaining = length;
+        this.names = new ArrayList<>(Math.max(0, Math.min(nameCount, 
+                                                          1 << 24)));
+        this.keys = new ArrayList<>(Math.max(0, Math.min(nameCount, 
+                                                         1 << 24)));
+    }
+
+    public long getSourceLength() {
+        return this.sourceLength;
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+    @Override
+    public String[] next() throws IOException {
+        while (pending.isEmpty()) {
+            int type = readRecord();
+            if (type < 0)
+                return null;
+            if (type == BinaryLogWriter.RAW_RECORD) {
+                pending.addAll(tokenizeRaw(buffer, position, end));
+                position = end;
+                continue;
+            }
+            String[] logLine = new String[fieldCount + 2];
+            logLine[0] = timestamp();
+            logLine[1] = TYPES[type].name();
+            for (int i = 0; i < fieldCount; i++) {
+                logLine[i + 2] = keys.get(ids[i]);
+            }
+            lines++;
+            return logLine;
+        }
+        lines++;
+        return pending.poll();
+    }
+
+    // The next line as it was written to TM.log, without its line feed.
+    public byte[] nextLine() throws IOException {
+        int type = readRecord();
+        if (type < 0)
+            return null;
+        if (type == BinaryLogWriter.RAW_RECORD) {
+            byte[] line = Arrays.copyOfRange(buffer, position, end);
+            position = end;
+            return line;
+        }
+        StringBuilder line = new StringBuilder(64)
+                .append(LocalDateTime.ofEpochSecond(second, nano, 
+                                                    ZoneOffset.UTC))
+                .append('\t').append(LogRecord.label(TYPES[type]));
+        for (int i = 0; i < fieldCount; i++) {
+            line.append('\t');
+            if ((quoted & (1L << i)) != 0) {
+                line.append('"').append(names.get(ids[i])).append('"');
+            } else {
+                line.append(names.get(ids[i]));
+            }
+        }
+        return line.toString().getBytes(LogReader.CHARSET);
+    }
+
+    // The tokens the text reader would give for a line that was stored
+    // as it was written; carriage returns split it like line feeds do.
+    protected static List<String[]> tokenizeRaw(byte[] line, int from, 
+                                                int to) {
+        List<String[]> logLines = new ArrayList<>(1);
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i < to && line[i] != '\r')
+                continue;
+            int first = start;
+            int last = i;
+            while (first < last && (line[first] & 0xFF) <= ' ')
+                first++;
+            while (last > first && (line[last - 1] & 0xFF) <= ' ')
+                last--;
+            if (first < last)
+                logLines.add(LogReader.tokenize(line, first, last, 
+                                    new String[8], LogReader.CHARSET));
+            start = i + 1;
+        }
+        return logLines;
+    }
+
+    // Reads up to the next log record and returns its type, or -1 at the
+    // end. A raw record's bytes are left between position and end.
+    private int readRecord() throws IOException {
+        while (true) {
+            int length = readLength();
+            if (length == 0)
+                return -1;
+            if (!ensure(length))
+                throw new StreamCorruptedException("Truncated record");
+            end = position + length;
+            int type = buffer[position++] & 0xFF;
+            if (type == BinaryLogWriter.NAME_RECORD) {
+                String name = new String(buffer, position, end - position, 
+                                         StandardCharsets.UTF_8);
+                names.add(name);
+                keys.add(name.toUpperCase());
+                position = end;
+                continue;
+            }
+            if (type == BinaryLogWriter.RAW_RECORD)
+                return type;
+            if (type >= TYPES.length)
+                throw new StreamCorruptedException("Invalid record type");
+            long delta = readVarint();
+            second += (delta >>> 1) ^ -(delta & 1);
+            nano = (int) readVarint();
+            int fields = (int) readVarint();
+            if (fields < 1 || fields > end - position || fields > 64)
+                throw new StreamCorruptedException("Invalid field count");
+            if (fields > ids.length)
+                ids = new int[fields];
+            for (int i = 0; i < fields; i++) {
+                long id = readVarint();
+                if (id >= names.size())
+                    throw new StreamCorruptedException("Invalid name id");
+                ids[i] = (int) id;
+            }
+            fieldCount = fields;
+            quoted = readVarint();
+            if (position != end)
+                throw new StreamCorruptedException("Invalid record length");
+            return type;
+        }
+    }
+
+    private String timestamp() {
+        long day = Math.floorDiv(second, 86400);
+        if (day != stampDay) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            if (nano != 0 || date.getYear() < 0 || date.getYear() > 9999)
+                return LocalDateTime.ofEpochSecond(second, nano, 
+                                                   ZoneOffset.UTC).toString();
+            putDigits(0, 4, date.getYear());
+            stamp[4] = '-';
+            putDigits(5, 2, date.getMonthValue());
+            stamp[7] = '-';
+            putDigits(8, 2, date.getDayOfMonth());
+            stamp[10] = 'T';
+            stamp[13] = ':';
+            stamp[16] = ':';
+            stampDay = day;
+        } else if (nano != 0) {
+            return LocalDateTime.ofEpochSecond(second, nano, 
+                                               ZoneOffset.UTC).toString();
+        }
+        int secondOfDay = Math.floorMod(second, 86400);
+        putDigits(11, 2, secondOfDay / 3600);
+        putDigits(14, 2, secondOfDay / 60 % 60);
+        putDigits(17, 2, secondOfDay % 60);
+        return new String(stamp, StandardCharsets.ISO_8859_1);
+    }
+
+    private void putDigits(int from, int count, int value) {
+        for (int i = from + count - 1; i >= from; i--) {
+            stamp[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private int readLength() throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!ensure(1)) {
+                if (shift == 0)
+                    return 0;
+                throw new StreamCorruptedException("Truncated record");
+            }
+            byte b = buffer[position++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (length <= 0)
+                    throw new StreamCorruptedException("Invalid length");
+                return length;
+            }
+        }
+        throw new StreamCorruptedException("Invalid length");
     }
 
-    public void updateName(String newTaskName) {
-        this.name = newTaskName;
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end)
+                throw new StreamCorruptedException("Truncated record");
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Invalid varint");
     }
 
-    public void updateStart(LocalDateTime timeStamp) {
-        if (isRunning) {
-            throw new IllegalStateException("Task " + this.name + 
-                                            " is already running, error");
+    private boolean ensure(int count) throws IOException {
+        while (limit - position < count) {
+            if (remaining == 0)
+                return false;
+            if (count > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(count, 
+                                                        buffer.length * 2));
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            int request = (int) Math.min(buffer.length - limit, remaining);
+            long started = RunStats.start();
+            int read = channel.read(ByteBuffer.wrap(buffer, limit, request));
+            if (RunStats.isEnabled())
+                readNanos += System.nanoTime() - started;
+            if (read < 0) {
+                remaining = 0;
+                return false;
+            }
+            bytes += read;
+            limit += read;
+            remaining -= read;
         }
-        this.start = timeStamp;
-        this.isRunning = true;
+        return true;
     }
 
-    public void updateStop(LocalDateTime timeStamp) {
-        if (!isRunning) {
-            throw new IllegalStateException("Task " + this.name + 
-                                " cannot stop since it has not started, error");
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (RunStats.isEnabled())
+            RunStats.addScan(lines, bytes, readNanos, 0);
+    }
+}
+
+class Segment {
+    private final int number;
+    private final LocalDateTime first;
+    private final LocalDateTime last;
+    private final int lineCount;
+
+    public Segment(int number, LocalDateTime first, LocalDateTime last, 
+                   int lineCount) {
+        this.number = number;
+        this.first = first;
+        this.last = last;
+        this.lineCount = lineCount;
+    }
+
+    public int getNumber() {
+        return this.number;
+    }
+
+    public LocalDateTime getFirst() {
+        return this.first;
+    }
+
+    public LocalDateTime getLast() {
+        return this.last;
+    }
+
+    public int getLineCount() {
+        return this.lineCount;
+    }
+}
+
+class SegmentUtil {
+    private static final String MANIFEST_FILE = "TM.manifest";
+    private static final String STATE_PREFIX = "TM.state.";
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    public static List<Segment> readManifest() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        Path manifest = Path.of(MANIFEST_FILE);
+        if (!Files.exists(manifest))
+            return segments;
+        for (String line : Files.readAllLines(manifest)) {
+            if (line.isBlank())
+                continue;
+            String[] fields = line.split("\t");
+            try {
+                segments.add(new Segment(Integer.parseInt(fields[0]), 
+                                         LocalDateTime.parse(fields[1]), 
+                                         LocalDateTime.parse(fields[2]), 
+                                         Integer.parseInt(fields[3])));
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt manifest line: " + line);
+            }
         }
-        Duration duration = Duration.between(this.start, timeStamp);
-        this.start = null;
-        this.totalTime = this.totalTime.plus(duration);
-        this.isRunning = false;
+        return segments;
     }
 
-    public void updateDescription(String description) {
-        this.description = description;
+    public static Path segmentPath(int number) {
+        return Path.of(TextLogEngine.LOGFILE + "." + number);
     }
 
-    public void updateSize(String taskSize) {
-        this.size = taskSize;
+    public static Path compressedPath(int number) {
+        return Path.of(TextLogEngine.LOGFILE + "." + number + ".gz");
     }
 
-    public String getSummary() {
-        return "Summary for Task  \t:\t " + this.name +
-                "\nDescription     \t:\t " + this.description + 
-                "\nTotal Time Spent\t:\t " + DurationUtil
-                    .formatTotalTime(getDuration()) + 
-                "\nTask Size       \t:\t " + this.size + "\n";
+    public static LogReader openSealed(int number) throws IOException {
+        Path compressed = compressedPath(number);
+        if (!Files.exists(compressed)) {
+            try {
+                return FileUtil.openLog(segmentPath(number));
+            } catch (NoSuchFileException e) {
+                if (!Files.exists(compressed))
+                    return null;
+            }
+        }
+        return FileUtil.openCompressedLog(compressed);
     }
 
-    public String getSize() {
-        return this.size;
+    public static void compressSealed() throws IOException {
+        if ("off".equalsIgnoreCase(System.getenv("TM_COMPRESS")))
+            return;
+        for (Segment segment : readManifest()) {
+            Path plain = segmentPath(segment.getNumber());
+            Path compressed = compressedPath(segment.getNumber());
+            if (!Files.exists(plain))
+                continue;
+            if (!Files.exists(compressed)) {
+                Path temp = Path.of(compressed + "." + 
+                                    ProcessHandle.current().pid() + ".tmp");
+                try {
+                    writeCompressed(plain, temp);
+                    Files.move(temp, compressed, 
+                               StandardCopyOption.REPLACE_EXISTING, 
+                               StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    continue;
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            Files.deleteIfExists(plain);
+        }
     }
 
-    public String getTaskName() {
-        return this.name;
+    protected static void writeCompressed(Path source, Path target) 
+                                                        throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int pending = 0;
+        try (InputStream in = Files.newInputStream(source);
+             FileChannel out = FileChannel.open(target, 
+                                    StandardOpenOption.WRITE, 
+                                    StandardOpenOption.CREATE, 
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                int filled = pending + in.readNBytes(chunk, pending, 
+                                                     chunk.length - pending);
+                if (filled == 0)
+                    break;
+                int cut = filled;
+                if (filled == chunk.length) {
+                    while (cut > 0 && chunk[cut - 1] != '\n')
+                        cut--;
+                    if (cut == 0)
+                        cut = filled;
+                }
+                ByteArrayOutputStream member = new ByteArrayOutputStream(
+                                                            cut / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(chunk, 0, cut);
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(member.toByteArray());
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                pending = filled - cut;
+                System.arraycopy(chunk, cut, chunk, 0, pending);
+            }
+            out.force(true);
+        }
     }
 
-    public Duration getDuration() {
-        if (this.isRunning) {
-            return this.totalTime.plus(Duration.between(this.start, 
-                                            LocalDateTime.now()));
+    public static Map<String, Task> readStartState(int number) 
+                                                        throws IOException {
+        return SnapshotUtil.readState(Path.of(STATE_PREFIX + number));
+    }
+
+    public static Map<String, Task> readActiveState() throws IOException {
+        return readStartState(readManifest().size() + 1);
+    }
+
+    public static void clearActiveState() throws IOException {
+        Files.deleteIfExists(Path.of(STATE_PREFIX + 
+                                     (readManifest().size() + 1)));
+    }
+
+    public static void recover() throws IOException {
+        if (!Files.exists(segmentPath(readManifest().size() + 1)))
+            return;
+        LogLock.acquire();
+        try {
+            List<Segment> segments = readManifest();
+            Path unlisted = segmentPath(segments.size() + 1);
+            if (!Files.exists(unlisted))
+                return;
+            Path log = Path.of(TextLogEngine.LOGFILE);
+            if (!Files.exists(log) || Files.isSameFile(unlisted, log))
+                replaceLog();
+            register(segments, unlisted);
+        } finally {
+            LogLock.release();
         }
-        return this.totalTime;
     }
 
-    public boolean isRunning() {
-        return this.isRunning;
+    public static boolean isUnchanged(int segments) throws IOException {
+        return readManifest().size() == segments && 
+               !Files.exists(segmentPath(segments + 1));
     }
-}
 
-class DurationUtil {
-    protected static String formatTotalTime(Duration duration){
-        return String.format("%02d:%02d:%02d", duration.toHours(), 
-                            duration.toMinutesPart(), duration.toSecondsPart());
+    public static boolean isRotationDue(long logLength) throws IOException {
+        String policy = System.getenv("TM_ROTATE");
+        if (policy == null || policy.isBlank() || logLength == 0 || 
+                policy.equalsIgnoreCase("off"))
+            return false;
+        if (policy.equalsIgnoreCase("month")) {
+            try (LogReader reader = FileUtil.openLog(0, logLength, false)) {
+                String[] first = reader.next();
+                return first != null && !YearMonth.from(LocalDateTime.parse(
+                                    first[0])).equals(YearMonth.now());
+            }
+        }
+        return logLength >= parseSize(policy);
+    }
+
+    private static long parseSize(String policy) {
+        String digits = policy.trim().toUpperCase();
+        long unit = 1;
+        if (digits.endsWith("K") || digits.endsWith("M") || 
+                digits.endsWith("G")) {
+            unit = 1L << (10 * ("KMG".indexOf(digits.charAt(
+                                                digits.length() - 1)) + 1));
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            return Long.parseLong(digits) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid TM_ROTATE value " + 
+                                    policy + ", expected month or a size " +
+                                    "such as 64M");
+        }
+    }
+
+    public static void rotate(Map<String, Task> taskMap) throws IOException {
+        List<Segment> segments = readManifest();
+        int number = segments.size() + 1;
+        SnapshotUtil.writeState(Path.of(STATE_PREFIX + (number + 1)), 
+                                taskMap);
+        LogAppender.close();
+        Path log = Path.of(TextLogEngine.LOGFILE);
+        Path sealed = segmentPath(number);
+        try {
+            Files.createLink(sealed, log);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.move(log, sealed, StandardCopyOption.ATOMIC_MOVE);
+        }
+        replaceLog();
+        register(segments, sealed);
+        SnapshotUtil.deleteSnapshot();
+        OffsetIndex.delete();
+    }
+
+    private static void replaceLog() throws IOException {
+        Path empty = Path.of(TextLogEngine.LOGFILE + ".new");
+        Files.deleteIfExists(empty);
+        Files.createFile(empty);
+        Files.move(empty, Path.of(TextLogEngine.LOGFILE), 
+                   StandardCopyOption.REPLACE_EXISTING, 
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void register(List<Segment> segments, Path sealed) 
+                                                        throws IOException {
+        LocalDateTime first = null;
+        LocalDateTime last = null;
+        int lines = 0;
+        try (LogReader reader = new LogReader(FileChannel.open(sealed), 0, 
+                                              Files.size(sealed), true)) {
+            String[] logLine;
+            while ((logLine = reader.next()) != null) {
+                LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+                if (first == null)
+                    first = timeStamp;
+                last = timeStamp;
+                lines++;
+            }
+        }
+        if (first == null)
+            first = last = LocalDateTime.now().withNano(0);
+        StringBuilder manifest = new StringBuilder();
+        for (Segment segment : segments) {
+            manifest.append(segment.getNumber()).append('\t')
+                    .append(segment.getFirst()).append('\t')
+                    .append(segment.getLast()).append('\t')
+                    .append(segment.getLineCount()).append('\n');
+        }
+        manifest.append(segments.size() + 1).append('\t').append(first)
+                .append('\t').append(last).append('\t').append(lines)
+                .append('\n');
+        Path temp = Path.of(MANIFEST_FILE + ".tmp");
+        Files.writeString(temp, manifest);
+        Files.move(temp, Path.of(MANIFEST_FILE), 
+                   StandardCopyOption.REPLACE_EXISTING, 
+                   StandardCopyOption.ATOMIC_MOVE);
     }
 }
 
-class TaskMapProcessor {
-    private static Map<String, Task> taskMap = new HashMap<>();
-    private static List<String[]> logList;
-    private static Map<CommandType, Command> commandMap;
+class TimeRangeProcessor {
 
-    public static Map<String, Task> createTaskMap(Map <CommandType, Command> 
-                                        commands) throws FileNotFoundException {
-        commandMap = commands;
-        logList = FileUtil.convertLogToList();
+    public static Map<Task, Duration> summarize(LocalDateTime since, 
+                        LocalDateTime until, Map<CommandType, Command> 
+                        commandMap) throws IOException {
+        List<Segment> segments = SegmentUtil.readManifest();
+        int first = segments.size() + 1;
+        for (Segment segment : segments) {
+            if (!segment.getLast().isBefore(since)) {
+                first = segment.getNumber();
+                break;
+            }
+        }
+        Map<String, Task> tasks = SegmentUtil.readStartState(first);
+        Map<Task, Duration> clipped = new IdentityHashMap<>();
+        boolean more = true;
+        for (int number = first; more && number <= segments.size() + 1; 
+                number++) {
+            if (number <= segments.size() && 
+                    !segments.get(number - 1).getFirst().isBefore(until))
+                break;
+            Path path = number <= segments.size() ? 
+                        SegmentUtil.segmentPath(number) 
+                        : Path.of(TextLogEngine.LOGFILE);
+            LogReader reader = number <= segments.size() 
+                    ? SegmentUtil.openSealed(number) 
+                    : Files.exists(path) ? FileUtil.openLog(path) : null;
+            if (reader == null)
+                continue;
+            try (reader) {
+                more = replay(reader, path, since, until, tasks, clipped, 
+                              commandMap);
+            }
+        }
+        LocalDateTime end = until;
+        LocalDateTime now = LocalDateTime.now();
+        if (now.isBefore(end))
+            end = now;
+        Map<Task, Duration> result = new LinkedHashMap<>();
+        for (Task task : tasks.values()) {
+            Duration time = clipped.getOrDefault(task, Duration.ZERO);
+            if (task.isRunning())
+                time = time.plus(overlap(task.getStartTime(), end, since, 
+                                         until));
+            if (!time.isZero() || (task.isRunning() && 
+                                   task.getStartTime().isBefore(until)))
+                result.put(task, time);
+        }
+        return result;
+    }
+
+    private static boolean replay(LogReader reader, Path path, 
+                                  LocalDateTime since, LocalDateTime until, 
+                                  Map<String, Task> tasks, 
+                                  Map<Task, Duration> clipped, 
+                                  Map<CommandType, Command> commandMap) 
+                                                        throws IOException {
         int lineNumber = 0;
-        for (String logLine[] : logList) {
+        String[] logLine;
+        while ((logLine = reader.next()) != null) {
             lineNumber++;
             try {
-                processLogLine(logLine, lineNumber, taskMap);
+                LocalDateTime timeStamp = LocalDateTime.parse(logLine[0]);
+                if (!timeStamp.isBefore(until))
+                    return false;
+                apply(logLine, timeStamp, since, until, tasks, clipped, 
+                      commandMap);
             } catch (IllegalStateException e) {
-                System.out.println(e.getMessage() + " at line " + lineNumber);
-                System.exit(1);
+                throw new IllegalStateException(e.getMessage() + 
+                                " at line " + lineNumber + " of " + path);
             } catch (ArrayIndexOutOfBoundsException e) {
-                System.out.println("Invalid log line at line " + lineNumber);
-                System.exit(1);
+                throw new IllegalStateException("Invalid log line at line " +
+                                                lineNumber + " of " + path);
             }
         }
-        taskMap.values().removeIf(element -> element.getTaskName() == null);
-        return taskMap;
+        return true;
     }
 
-    private static void processLogLine(String[] logLine, int lineNumber, 
-                                        Map<String, Task> taskMap) {
-        String commandString = logLine[1];
-        TaskManager.validateCommand(commandString);
-        String taskName = logLine[2];
-        Task existingTask = taskMap.get(taskName);
-        CommandType action = CommandType.valueOf(commandString.toUpperCase());
+    private static void apply(String[] logLine, LocalDateTime timeStamp, 
+                              LocalDateTime since, LocalDateTime until, 
+                              Map<String, Task> tasks, 
+                              Map<Task, Duration> clipped, 
+                              Map<CommandType, Command> commandMap) {
+        CommandType action = CommandType.parse(logLine[1]);
         Command command = commandMap.get(action);
+        String taskName = logLine[2];
+        Task existing = tasks.get(taskName);
+        if (existing == null) {
+            tasks.put(taskName, command.parseLine(logLine, null));
+            return;
+        }
+        if (action == CommandType.STOP && existing.isRunning()) {
+            clipped.merge(existing, overlap(existing.getStartTime(), 
+                                            timeStamp, since, until), 
+                          Duration::plus);
+        }
+        Task returned = command.parseLine(logLine, existing);
+        if (returned != null) {
+            tasks.put(returned.getTaskName(), returned);
+            tasks.remove(taskName);
+            tasks.remove(null);
+        }
+    }
 
-        if (existingTask == null){
-            Task returnedTask = command.parseLine(logLine, null);
-            // check current running task, if exists, throw exception
-            taskMap.put(taskName, returnedTask);
+    private static Duration overlap(LocalDateTime start, LocalDateTime stop,
+                                    LocalDateTime since, LocalDateTime until) {
+        LocalDateTime from = start.isAfter(since) ? start : since;
+        LocalDateTime to = stop.isBefore(until) ? stop : until;
+        return from.isBefore(to) ? Duration.between(from, to) : Duration.ZERO;
+    }
+}
+
+class IndexedRecords {
+    private final List<String[]> records;
+    private final boolean fromBase;
+
+    public IndexedRecords(List<String[]> records, boolean fromBase) {
+        this.records = records;
+        this.fromBase = fromBase;
+    }
+
+    public List<String[]> getRecords() {
+        return this.records;
+    }
+
+    public boolean isFromBase() {
+        return this.fromBase;
+    }
+}
+
+class OffsetIndex implements Closeable {
+    private static final String INDEX_FILE = "TM.index";
+    private static final String CHAIN_FILE = "TM.index.chain";
+    private static final int MAGIC = 0x544D4958;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int DIRTY_POSITION = 40;
+    private static final int SLOT_SIZE = 16;
+    private static final int ENTRY_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int CHECKSUM_SPAN = 4096;
+    private static final long REMOVED = -1;
+    private static final long BASE = -2;
+    private static final int RUNNING_NONE = 0;
+    private static final int RUNNING_ONE = 1;
+    private static final int RUNNING_UNKNOWN = 2;
+    // FileChannel.lock is held per process, so threads of one process
+    // (serve, daemon) take turns here before locking the file.
+    private static final ReentrantLock threads = new ReentrantLock();
+    private final FileChannel table;
+    private final FileChannel chain;
+    private long coveredOffset;
+    private int capacity;
+    private int used;
+    private long entries;
+    private int running;
+    private long runningHash;
+    private long runningEntry;
+    private long[] hashes;
+    private long[] heads;
+    private ByteBuffer pendingEntries;
+
+    private OffsetIndex() throws IOException {
+        threads.lock();
+        try {
+            table = FileChannel.open(Path.of(INDEX_FILE), 
+                                     StandardOpenOption.CREATE, 
+                                     StandardOpenOption.READ, 
+                                     StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            threads.unlock();
+            throw e;
         }
-        else {
-            removeExistingTask(logLine, existingTask, command);
+        try {
+            chain = FileChannel.open(Path.of(CHAIN_FILE), 
+                                     StandardOpenOption.CREATE, 
+                                     StandardOpenOption.READ, 
+                                     StandardOpenOption.WRITE);
+            table.lock();
+        } catch (IOException | RuntimeException e) {
+            try {
+                table.close();
+            } finally {
+                threads.unlock();
+            }
+            throw e;
         }
     }
 
-    private static void removeExistingTask(String[] logLine, Task existingTask, 
-                                           Command command) {
-        String nameToRemove = existingTask.getTaskName();
-        Task returnedTask = command.parseLine(logLine, existingTask);
-        if (returnedTask != null) {
-            taskMap.put(returnedTask.getTaskName(), returnedTask);
-            taskMap.remove(nameToRemove);
+    public static OffsetIndex open() throws IOException {
+        OffsetIndex index = new OffsetIndex();
+        try {
+            long logLength = FileUtil.getLogLength();
+            if (!index.load(logLength))
+                index.reset();
+            index.update(logLength);
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    public static IndexedRecords readRecords(String name) throws IOException {
+        try (OffsetIndex index = open()) {
+            if (index.coveredOffset != FileUtil.getLogLength())
+                return null;
+            List<Long> offsets = new ArrayList<>();
+            boolean fromBase = index.offsetsOf(name, offsets);
+            List<String[]> records = new ArrayList<>(offsets.size());
+            try (FileChannel log = FileChannel.open(
+                                        Path.of(TextLogEngine.LOGFILE))) {
+                for (int i = offsets.size() - 1; i >= 0; i--) {
+                    records.add(LogReader.readAt(log, offsets.get(i)));
+                }
+            }
+            return new IndexedRecords(records, fromBase);
+        } catch (IOException e) {
+            delete();
+            return null;
+        }
+    }
+
+    public static List<String> readRunningTasks() throws IOException {
+        try (OffsetIndex index = open()) {
+            if (index.coveredOffset != FileUtil.getLogLength() || 
+                    index.running == RUNNING_UNKNOWN)
+                return null;
+            if (index.running == RUNNING_NONE)
+                return Collections.emptyList();
+            String name = index.runningName();
+            return name == null ? null : List.of(name);
+        } catch (IOException e) {
+            delete();
+            return null;
+        }
+    }
+
+    public static void refresh() {
+        if (!Files.exists(Path.of(INDEX_FILE)))
+            return;
+        try {
+            open().close();
+        } catch (IOException e) {
+            try {
+                delete();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public static void delete() throws IOException {
+        Files.deleteIfExists(Path.of(INDEX_FILE));
+        Files.deleteIfExists(Path.of(CHAIN_FILE));
+    }
+
+    private boolean load(long logLength) throws IOException {
+        if (table.size() < HEADER_SIZE)
+            return false;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(table, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            return false;
+        coveredOffset = header.getLong();
+        long checksum = header.getLong();
+        capacity = header.getInt();
+        used = header.getInt();
+        entries = header.getLong();
+        boolean dirty = header.getInt() != 0;
+        running = header.getInt();
+        runningHash = header.getLong();
+        runningEntry = header.getLong();
+        if (dirty || capacity < INITIAL_CAPACITY || 
+                Integer.bitCount(capacity) != 1 || 
+                table.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE || 
+                chain.size() < entries * ENTRY_SIZE || 
+                coveredOffset > logLength || 
+                FileUtil.checksumBefore(coveredOffset, CHECKSUM_SPAN) 
+                    != checksum)
+            return false;
+        chain.truncate(entries * ENTRY_SIZE);
+        return true;
+    }
+
+    private void reset() throws IOException {
+        table.truncate(0);
+        chain.truncate(0);
+        coveredOffset = 0;
+        capacity = INITIAL_CAPACITY;
+        used = 0;
+        entries = 0;
+        running = RUNNING_NONE;
+        hashes = new long[capacity];
+        heads = new long[capacity];
+        writeHeader(true);
+        for (Task task : SegmentUtil.readActiveState().values()) {
+            put(task.getTaskName(), BASE);
+            if (task.isRunning())
+                trackRunning(CommandType.START, task.getTaskName(), null, 
+                             BASE);
+        }
+    }
+
+    private void update(long logLength) throws IOException {
+        if (coveredOffset == logLength && hashes == null)
+            return;
+        if (hashes == null && 
+                logLength - coveredOffset > (long) capacity * SLOT_SIZE)
+            loadTable();
+        setDirty(true);
+        pendingEntries = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+        try (LogReader reader = FileUtil.openLog(coveredOffset, logLength, 
+                                                 false)) {
+            String[] logLine;
+            while ((logLine = reader.next()) != null && 
+                    index(logLine, reader.getRecordOffset())) {
+                coveredOffset = reader.getOffset();
+            }
+        }
+        flushEntries();
+        if (hashes != null)
+            writeTable();
+        writeHeader(false);
+    }
+
+    private boolean index(String[] logLine, long offset) throws IOException {
+        if (logLine.length < 3)
+            return false;
+        CommandType action;
+        try {
+            action = CommandType.valueOf(logLine[1]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        boolean renames = action == CommandType.RENAME;
+        if ((renames && logLine.length < 4) || 
+                (action != CommandType.START && action != CommandType.STOP &&
+                 action != CommandType.DESCRIBE && 
+                 action != CommandType.SIZE && !renames &&
+                 action != CommandType.DELETE && 
+                 action != CommandType.DURATION))
+            return false;
+        String name = logLine[2];
+        int slot = find(hash(name));
+        long head = slot < 0 ? REMOVED : headAt(slot);
+        if (head == REMOVED && (action == CommandType.STOP || renames || 
+                                action == CommandType.DELETE))
+            return false;
+        long entry = appendEntry(offset, head);
+        trackRunning(action, name, renames ? logLine[3] : null, entry);
+        if (renames) {
+            put(logLine[3], entry);
+            remove(name);
+        } else if (action == CommandType.DELETE) {
+            remove(name);
+        } else {
+            put(name, entry);
+        }
+        return true;
+    }
+
+    private void trackRunning(CommandType action, String name, 
+                              String newName, long entry) {
+        if (running == RUNNING_UNKNOWN)
+            return;
+        long hash = hash(name);
+        boolean isRunning = running == RUNNING_ONE && hash == runningHash;
+        if (action == CommandType.START) {
+            running = running == RUNNING_NONE || isRunning ? RUNNING_ONE 
+                                                           : RUNNING_UNKNOWN;
+            runningHash = hash;
+            runningEntry = entry;
+        } else if (action == CommandType.RENAME) {
+            long target = hash(newName);
+            if (isRunning && target != hash) {
+                runningHash = target;
+                runningEntry = entry;
+            } else if (isRunning || (running == RUNNING_ONE && 
+                                     target == runningHash)) {
+                running = RUNNING_NONE;
+            }
+        } else if (isRunning && (action == CommandType.STOP || 
+                                 action == CommandType.DELETE)) {
+            running = RUNNING_NONE;
+        }
+    }
+
+    private String runningName() throws IOException {
+        if (runningEntry == BASE) {
+            for (Task task : SegmentUtil.readActiveState().values()) {
+                if (task.isRunning() && 
+                        hash(task.getTaskName()) == runningHash)
+                    return task.getTaskName();
+            }
+            return null;
+        }
+        if (runningEntry < 0 || runningEntry >= entries)
+            throw new IOException("Corrupt index header");
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        readFully(chain, buffer, runningEntry * ENTRY_SIZE);
+        String[] record;
+        try (FileChannel log = FileChannel.open(
+                                        Path.of(TextLogEngine.LOGFILE))) {
+            record = LogReader.readAt(log, buffer.getLong(0));
+        }
+        if (record.length < 3)
+            return null;
+        String name = record[1].equals(CommandType.RENAME.name()) && 
+                      record.length > 3 ? record[3] : record[2];
+        return hash(name) == runningHash ? name : null;
+    }
+
+    private boolean offsetsOf(String name, List<Long> offsets) 
+                                                        throws IOException {
+        int slot = find(hash(name));
+        long entry = slot < 0 ? REMOVED : headAt(slot);
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        while (entry >= 0) {
+            if (entry >= entries)
+                throw new IOException("Corrupt index chain");
+            buffer.clear();
+            readFully(chain, buffer, entry * ENTRY_SIZE);
+            offsets.add(buffer.getLong(0));
+            entry = buffer.getLong(8);
+        }
+        return entry == BASE;
+    }
+
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private int find(long hash) throws IOException {
+        int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+        while (true) {
+            long stored = hashAt(slot);
+            if (stored == hash)
+                return slot;
+            if (stored == 0)
+                return -1 - slot;
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private void put(String name, long entry) throws IOException {
+        long hash = hash(name);
+        int slot = find(hash);
+        if (slot < 0) {
+            if ((used + 1) * 2 > capacity) {
+                grow();
+                slot = find(hash);
+            }
+            slot = -1 - slot;
+            used++;
+        }
+        setSlot(slot, hash, entry);
+    }
+
+    private void remove(String name) throws IOException {
+        long hash = hash(name);
+        int slot = find(hash);
+        if (slot >= 0)
+            setSlot(slot, hash, REMOVED);
+    }
+
+    private void grow() throws IOException {
+        loadTable();
+        long[] oldHashes = hashes;
+        long[] oldHeads = heads;
+        int live = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0 && oldHeads[i] != REMOVED)
+                live++;
+        }
+        while ((live + 1) * 4 > capacity) {
+            capacity *= 2;
+        }
+        hashes = new long[capacity];
+        heads = new long[capacity];
+        used = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0 && oldHeads[i] != REMOVED) {
+                int slot = -1 - find(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                heads[slot] = oldHeads[i];
+                used++;
+            }
+        }
+    }
+
+    private long hashAt(int slot) throws IOException {
+        if (hashes != null)
+            return hashes[slot];
+        return readSlot(slot).getLong(0);
+    }
+
+    private long headAt(int slot) throws IOException {
+        if (heads != null)
+            return heads[slot];
+        return readSlot(slot).getLong(8);
+    }
+
+    private ByteBuffer readSlot(int slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        readFully(table, buffer, HEADER_SIZE + (long) slot * SLOT_SIZE);
+        return buffer;
+    }
+
+    private void setSlot(int slot, long hash, long head) throws IOException {
+        if (hashes != null) {
+            hashes[slot] = hash;
+            heads[slot] = head;
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        buffer.putLong(hash).putLong(head).flip();
+        writeFully(table, buffer, HEADER_SIZE + (long) slot * SLOT_SIZE);
+    }
+
+    private void loadTable() throws IOException {
+        if (hashes != null)
+            return;
+        hashes = new long[capacity];
+        heads = new long[capacity];
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE * 4096);
+        for (int slot = 0; slot < capacity; ) {
+            buffer.clear().limit(Math.min(buffer.capacity(), 
+                                          (capacity - slot) * SLOT_SIZE));
+            readFully(table, buffer, HEADER_SIZE + (long) slot * SLOT_SIZE);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                hashes[slot] = buffer.getLong();
+                heads[slot++] = buffer.getLong();
+            }
+        }
+    }
+
+    private void writeTable() throws IOException {
+        table.truncate(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE * 4096);
+        for (int slot = 0; slot < capacity; ) {
+            buffer.clear();
+            long position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            while (buffer.hasRemaining() && slot < capacity) {
+                buffer.putLong(hashes[slot]).putLong(heads[slot++]);
+            }
+            buffer.flip();
+            writeFully(table, buffer, position);
+        }
+    }
+
+    private long appendEntry(long offset, long previous) throws IOException {
+        if (!pendingEntries.hasRemaining())
+            flushEntries();
+        pendingEntries.putLong(offset).putLong(previous);
+        return entries++;
+    }
+
+    private void flushEntries() throws IOException {
+        pendingEntries.flip();
+        long first = entries - pendingEntries.remaining() / ENTRY_SIZE;
+        writeFully(chain, pendingEntries, first * ENTRY_SIZE);
+        pendingEntries.clear();
+    }
+
+    private void setDirty(boolean dirty) throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(4).putInt(dirty ? 1 : 0);
+        flag.flip();
+        writeFully(table, flag, DIRTY_POSITION);
+    }
+
+    private void writeHeader(boolean dirty) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(coveredOffset)
+              .putLong(FileUtil.checksumBefore(coveredOffset, CHECKSUM_SPAN))
+              .putInt(capacity).putInt(used).putLong(entries)
+              .putInt(dirty ? 1 : 0).putInt(running).putLong(runningHash)
+              .putLong(runningEntry).flip();
+        writeFully(table, header, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, 
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Truncated index");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, 
+                                   long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
         }
     }
 
+    @Override
+    public void close() throws IOException {
+        try {
+            chain.close();
+        } finally {
+            try {
+                table.close();
+            } finally {
+                threads.unlock();
+            }
+        }
+    }
+}
+
+class ParallelReplayProcessor {
+    private static final int WINDOW = 1 << 18;
+    private static final long MIN_PARALLEL_BYTES = 64L << 20;
+
+    public static boolean isWorthwhile(long bytes) {
+        String setting = System.getenv("TM_PARALLEL_REPLAY");
+        if ("on".equalsIgnoreCase(setting))
+            return true;
+        if ("off".equalsIgnoreCase(setting))
+            return false;
+        return bytes >= MIN_PARALLEL_BYTES && 
+               Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    public static int replay(LogReader reader, Map<String, Task> taskMap,
+                             Map<CommandType, Command> commandMap, 
+                             int lineNumber) throws IOException {
+        Map<String, Integer> identities = new HashMap<>();
+        List<Task> tasks = new ArrayList<>();
+        for (Map.Entry<String, Task> entry : taskMap.entrySet()) {
+            identities.put(entry.getKey(), tasks.size());
+            tasks.add(entry.getValue());
+        }
+        String[][] records = new String[WINDOW][];
+        int[] owners = new int[WINDOW];
+        int[] groupOf = new int[0];
+        boolean more = true;
+        while (more) {
+            int firstLine = lineNumber + 1;
+            int count = 0;
+            RuntimeException error = null;
+            String[] logLine = null;
+            while (count < WINDOW && (logLine = reader.next()) != null) {
+                lineNumber++;
+                try {
+                    owners[count] = resolve(logLine, identities, tasks, 
+                                            commandMap);
+                } catch (RuntimeException e) {
+                    error = e;
+                    break;
+                }
+                records[count++] = logLine;
+            }
+            more = error == null && logLine != null;
+            if (groupOf.length < tasks.size())
+                groupOf = new int[Math.max(tasks.size(), groupOf.length * 2)];
+            RuntimeException[] foldError = new RuntimeException[1];
+            int errorIndex = fold(records, owners, count, tasks, commandMap, 
+                                  groupOf, foldError);
+            if (errorIndex >= 0) {
+                TaskMapProcessor.failReplay(foldError[0], 
+                                            firstLine + errorIndex);
+            }
+            if (error != null)
+                TaskMapProcessor.failReplay(error, lineNumber);
+        }
+        taskMap.clear();
+        identities.remove(null);
+        for (Map.Entry<String, Integer> entry : identities.entrySet()) {
+            taskMap.put(entry.getKey(), tasks.get(entry.getValue()));
+        }
+        return lineNumber;
+    }
+
+    private static int resolve(String[] logLine, 
+                               Map<String, Integer> identities, 
+                               List<Task> tasks, 
+                               Map<CommandType, Command> commandMap) {
+        CommandType action = CommandType.parse(logLine[1]);
+        String taskName = logLine[2];
+        Integer identity = identities.get(taskName);
+        if (identity == null) {
+            Task created = commandMap.get(action).parseLine(logLine, null);
+            identities.put(taskName, tasks.size());
+            tasks.add(created);
+            return -1;
+        }
+        if (action == CommandType.RENAME) {
+            identities.put(logLine[3], identity);
+            identities.remove(taskName);
+        } else if (action == CommandType.DELETE) {
+            identities.put(null, identity);
+            identities.remove(taskName);
+        }
+        return identity;
+    }
+
+    private static int fold(String[][] records, int[] owners, int count,
+                            List<Task> tasks, 
+                            Map<CommandType, Command> commandMap,
+                            int[] groupOf, RuntimeException[] foldError) {
+        int[] identityOfGroup = new int[count];
+        int[] groupSize = new int[count + 1];
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            if (owners[i] >= 0 && groupOf[owners[i]] == 0) {
+                identityOfGroup[groups] = owners[i];
+                groupOf[owners[i]] = ++groups;
+            }
+            if (owners[i] >= 0)
+                groupSize[groupOf[owners[i]]]++;
+        }
+        int[] groupStart = new int[groups + 1];
+        for (int g = 0; g < groups; g++) {
+            groupStart[g + 1] = groupStart[g] + groupSize[g + 1];
+        }
+        int[] order = new int[groupStart[groups]];
+        int[] fill = Arrays.copyOf(groupStart, groups);
+        for (int i = 0; i < count; i++) {
+            if (owners[i] >= 0)
+                order[fill[groupOf[owners[i]] - 1]++] = i;
+        }
+        for (int g = 0; g < groups; g++) {
+            groupOf[identityOfGroup[g]] = 0;
+        }
+        int[] firstError = new int[groups];
+        RuntimeException[] errors = new RuntimeException[groups];
+        IntStream.range(0, groups).parallel().forEach(g -> {
+            Task task = tasks.get(identityOfGroup[g]);
+            firstError[g] = -1;
+            for (int k = groupStart[g]; k < groupStart[g + 1]; k++) {
+                String[] logLine = records[order[k]];
+                Command command = commandMap.get(
+                                        CommandType.parse(logLine[1]));
+                try {
+                    command.parseLine(logLine, task);
+                } catch (RuntimeException e) {
+                    firstError[g] = order[k];
+                    errors[g] = e;
+                    return;
+                }
+            }
+        });
+        int errorIndex = -1;
+        for (int g = 0; g < groups; g++) {
+            if (firstError[g] >= 0 && 
+                    (errorIndex < 0 || firstError[g] < errorIndex)) {
+                errorIndex = firstError[g];
+                foldError[0] = errors[g];
+            }
+        }
+        return errorIndex;
+    }
 }
 
 class CommandMapFactory {
@@ -649,6 +5832,13 @@ class CommandMapFactory {
         commandMap.put(CommandType.DELETE, new DeleteCommand());
         commandMap.put(CommandType.HELP, new HelpCommand());
         commandMap.put(CommandType.SUMMARY, new SummaryCommand());
+        commandMap.put(CommandType.DAEMON, new DaemonCommand());
+        commandMap.put(CommandType.BATCH, new BatchCommand());
+        commandMap.put(CommandType.DURATION, new DurationCommand());
+        commandMap.put(CommandType.COMPACT, new CompactCommand());
+        commandMap.put(CommandType.CONVERT, new ConvertCommand());
+        commandMap.put(CommandType.SERVE, new ServeCommand());
+        commandMap.put(CommandType.WATCH, new WatchCommand());
         return commandMap;
     }
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+#!/bin/sh
+# Compares the wall-clock startup time of java TM.java, the packaged jar
+# and the jar with its CDS archive. Runs inside bench/target/work like the
+# JMH suite; arguments are the log size in lines and the runs per command.
+set -e
+cd "$(dirname "$0")"
+if [ ! -f target/tm.jsa ]; then
+    mvn -B -q package
+fi
+if [ ! -f ../bench/target/benchmarks.jar ]; then
+    mvn -B -q -f ../bench/pom.xml package
+fi
+mkdir -p ../bench/target/work
+touch ../bench/target/work/.tm-bench
+cd ../bench/target/work
+exec java -cp ../benchmarks.jar tm.StartupBenchmark "$@"
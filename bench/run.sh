@@ -0,0 +1,12 @@
+#!/bin/sh
+# Runs the JMH suite inside bench/target/work so the TM.log files the
+# benchmarks generate never touch the task log in the repository root.
+set -e
+cd "$(dirname "$0")"
+if [ ! -f target/benchmarks.jar ]; then
+    mvn -B -q package
+fi
+mkdir -p target/work
+touch target/work/.tm-bench
+cd target/work
+exec java -jar ../benchmarks.jar "$@"
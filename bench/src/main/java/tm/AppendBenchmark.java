@@ -0,0 +1,38 @@
+package tm;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class AppendBenchmark {
+    @Param({"OS", "BATCH", "RECORD"})
+    public String durability;
+
+    private final LogRecord record = LogRecord.start(
+            LocalDateTime.of(2024, 5, 1, 9, 30, 15), "BENCHMARK-TASK");
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.clearLog();
+        LogAppender.setDurability(Durability.valueOf(durability));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LogAppender.close();
+        Workspace.clearLog();
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        Storage.append(record);
+    }
+}
@@ -0,0 +1,106 @@
+package tm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryRoundTrip {
+    // Lines the binary log cannot store field by field: lower case text,
+    // timestamps with a fraction or seconds of zero, unquoted custom
+    // sizes, blank lines, carriage returns and stray whitespace.
+    private static final String UNUSUAL_LOG =
+        "2024-05-01T09:00\tStart\t\"Bee\"\n" + 
+        "2024-05-01T09:53:10.5\tStop\t\"Bee\"\n" + 
+        "2024-05-01T10:00\tDescribe\t\"Bee\"\t\"Bee desc\"\tweird\n" + 
+        "\n" + 
+        "2024-05-01T10:01\tSize\t\"Bee\"\tM\r\n" + 
+        "  2024-05-01T10:02\tStart\t\"cat dog\"\n" + 
+        "2024-05-01T10:03:00\tStop\t\"cat dog\"\n" + 
+        "2024-05-01T10:04:05\tRename\t\"cat dog\"\t\"Cat\"\n" + 
+        "2024-05-01T10:05\tDuration\t\"Cat\"\tPT1H\n" + 
+        "2024-05-01T10:06\tStart\t\"Cat\"\n";
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        Workspace.checkDirectory();
+        int failures = 0;
+        Workspace.clearLog();
+        Files.writeString(Workspace.LOG, UNUSUAL_LOG, LogReader.CHARSET);
+        failures += check("unusual lines");
+        Workspace.clearLog();
+        LogGenerator.generate(Workspace.LOG, lines, 42);
+        failures += check(lines + " generated lines");
+        Workspace.clearLog();
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    // Converts TM.log to TM.bin and back. TM.log must come back byte for
+    // byte, and replaying TM.bin must give the tasks replaying the text
+    // gives.
+    private static int check(String name) throws IOException {
+        byte[] original = Files.readAllBytes(Workspace.LOG);
+        List<String> fromText = tasks();
+        int failures = 0;
+        String binary = execute("convert", "binary");
+        List<String> fromBinary = tasks();
+        if (!fromBinary.equals(fromText)) {
+            failures++;
+            System.out.println("  replayed tasks differ:\n  text   " + 
+                               fromText + "\n  binary " + fromBinary);
+        }
+        String text = execute("convert", "text");
+        byte[] converted = Files.readAllBytes(Workspace.LOG);
+        if (!Arrays.equals(original, converted)) {
+            failures++;
+            System.out.println("  " + Workspace.LOG + " changed: " + 
+                               original.length + " bytes before, " + 
+                               converted.length + " after, first " + 
+                               "difference at byte " + 
+                               Arrays.mismatch(original, converted));
+        }
+        System.out.printf("%-24s %s%n", name, failures == 0
+                ? binary.trim() + ", round trip unchanged"
+                : (binary + text).trim());
+        return failures;
+    }
+
+    private static String execute(String... command) throws IOException {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(captured, true));
+            TaskManager.reset();
+            if (TaskManager.getInstance().execute(command) != 0)
+                throw new IllegalStateException(String.join(" ", command) + 
+                                                " failed: " + captured);
+        } finally {
+            System.setOut(out);
+            LogAppender.close();
+            TaskManager.reset();
+        }
+        return captured.toString();
+    }
+
+    private static List<String> tasks() throws IOException {
+        Files.deleteIfExists(Workspace.SNAPSHOT);
+        Files.deleteIfExists(Workspace.INDEX);
+        TaskManager.reset();
+        List<String> tasks = new ArrayList<>();
+        for (Task task : TaskManager.getInstance().loadTaskMap().values()) {
+            tasks.add(task.getTaskName() + " | " + task.getDescription() + 
+                      " | " + task.getSize() + " | " + 
+                      task.getAccumulatedTime() + " | " + 
+                      task.getStartTime());
+        }
+        TaskManager.reset();
+        Files.deleteIfExists(Workspace.SNAPSHOT);
+        Files.deleteIfExists(Workspace.INDEX);
+        tasks.sort(null);
+        return tasks;
+    }
+}
@@ -0,0 +1,135 @@
+package tm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FootprintCheck {
+    private static final String[] SIZES = {"S", "M", "L", "XL"};
+    private static final String[] DESCRIPTIONS = {
+        "Follow up on customer ticket", "Investigate flaky build", 
+        "Pair on parser rewrite", "Weekly planning"};
+    private static final double REQUIRED_TASK_RATIO = 3.0;
+    private static final double REQUIRED_MAP_RATIO = 1.8;
+
+    private static class LegacyTask {
+        private String name, description, size;
+        private LocalDateTime start;
+        private Duration totalTime = Duration.ZERO;
+        private boolean isRunning;
+    }
+
+    public static void main(String[] args) {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Map<CommandType, Command> commands = 
+                                        CommandMapFactory.createCommandMap();
+
+        long base = usedHeap();
+        Map<String, Object> names = new HashMap<>();
+        for (int i = 0; i < tasks; i++)
+            names.put(new String("TASK-" + i), Boolean.TRUE);
+        long keys = usedHeap() - base;
+        Reference.reachabilityFence(names);
+        names = null;
+
+        base = usedHeap();
+        Map<String, LegacyTask> legacy = new HashMap<>();
+        for (int i = 0; i < tasks; i++) {
+            String[][] records = records(i);
+            LegacyTask task = new LegacyTask();
+            task.name = records[0][2];
+            task.description = records[0][3];
+            task.size = records[0][4];
+            task.totalTime = Duration.between(
+                    LocalDateTime.parse(records[1][0]), 
+                    LocalDateTime.parse(records[2][0]));
+            if (i % 100 == 0) {
+                task.start = LocalDateTime.parse(records[3][0]);
+                task.isRunning = true;
+            }
+            legacy.put(task.name, task);
+        }
+        long legacyBytes = usedHeap() - base;
+        Reference.reachabilityFence(legacy);
+        legacy = null;
+
+        base = usedHeap();
+        Map<String, Task> compact = new HashMap<>();
+        for (int i = 0; i < tasks; i++) {
+            String[][] records = records(i);
+            int count = i % 100 == 0 ? 4 : 3;
+            for (int r = 0; r < count; r++) {
+                Command command = commands.get(CommandType.valueOf(
+                                                records[r][1].toUpperCase()));
+                Task existing = compact.get(records[r][2]);
+                Task created = command.parseLine(records[r], existing);
+                if (existing == null)
+                    compact.put(records[r][2], created);
+            }
+        }
+        long compactBytes = usedHeap() - base;
+        Reference.reachabilityFence(compact);
+
+        double legacyPerTask = (double) (legacyBytes - keys) / tasks;
+        double compactPerTask = (double) (compactBytes - keys) / tasks;
+        double ratio = legacyPerTask / compactPerTask;
+        double legacyPerEntry = (double) legacyBytes / tasks;
+        double compactPerEntry = (double) compactBytes / tasks;
+        double mapRatio = legacyPerEntry / compactPerEntry;
+        System.out.printf("Tasks:                      %d%n", tasks);
+        System.out.printf("Names and map entries:      %.1f bytes/task%n", 
+                          (double) keys / tasks);
+        System.out.printf("Previous task layout:       %.1f bytes/task%n", 
+                          legacyPerTask);
+        System.out.printf("Current task layout:        %.1f bytes/task%n", 
+                          compactPerTask);
+        System.out.printf("Task reduction:             %.1fx%n", ratio);
+        System.out.printf("Previous task map:          %.1f bytes/task%n", 
+                          legacyPerEntry);
+        System.out.printf("Current task map:           %.1f bytes/task%n", 
+                          compactPerEntry);
+        System.out.printf("Task map reduction:         %.1fx%n", mapRatio);
+        boolean failed = false;
+        if (ratio < REQUIRED_TASK_RATIO) {
+            System.out.printf("Expected at least %.1fx for the task layout%n", 
+                              REQUIRED_TASK_RATIO);
+            failed = true;
+        }
+        if (mapRatio < REQUIRED_MAP_RATIO) {
+            System.out.printf("Expected at least %.1fx for the task map%n", 
+                              REQUIRED_MAP_RATIO);
+            failed = true;
+        }
+        if (failed)
+            System.exit(1);
+    }
+
+    private static String[][] records(int i) {
+        LocalDateTime day = LocalDateTime.of(2020, 1, 1, 8, 0)
+                                         .plusMinutes(i % 500_000);
+        String name = "\"TASK-" + i + "\"";
+        return new String[][] {
+            FileUtil.parseLine(day + "\tDescribe\t" + name + "\t\"" + 
+                               DESCRIPTIONS[i % DESCRIPTIONS.length] + 
+                               "\"\t" + SIZES[i % SIZES.length]),
+            FileUtil.parseLine(day + "\tStart\t" + name),
+            FileUtil.parseLine(day.plusSeconds(37 + i % 7200) + 
+                               "\tStop\t" + name),
+            FileUtil.parseLine(day.plusHours(3) + "\tStart\t" + name)
+        };
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,150 @@
+package tm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Map;
+
+public class LogGenerator {
+    private static final String[] SIZES = {"S", "M", "L", "XL"};
+    private static final String[] PREFIXES = {"FIX", "REVIEW", "REFACTOR",
+        "DEPLOY", "MEETING", "DOCS", "TEST", "RESEARCH", "SUPPORT", "PLAN"};
+    private static final String[] DESCRIPTIONS = {
+        "Follow up on customer ticket", "Investigate flaky build", 
+        "Pair on parser rewrite", "Weekly planning", 
+        "Update onboarding notes", "Profile startup time",
+        "Draft release announcement", "Triage incoming bugs"};
+
+    private final Random random;
+    private final List<String> tasks = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private LocalDateTime clock = LocalDateTime.of(2020, 1, 1, 8, 0);
+    private String running;
+    private int nextId;
+
+    public LogGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: LogGenerator <lines> <file> [seed]");
+            System.exit(1);
+        }
+        int lines = Integer.parseInt(args[0]);
+        long seed = args.length == 3 ? Long.parseLong(args[2]) : 42;
+        generate(Path.of(args[1]), lines, seed);
+    }
+
+    public static void generate(Path file, int lines, long seed) 
+                                                        throws IOException {
+        LogGenerator generator = new LogGenerator(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, 
+                                                StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write(generator.nextRecord());
+                writer.write('\n');
+            }
+        }
+    }
+
+    public String nextRecord() {
+        clock = clock.plusSeconds(1 + random.nextInt(120));
+        int roll = random.nextInt(100);
+        if (running != null && (roll < 45 || tasks.size() < 2)) {
+            String name = running;
+            running = null;
+            return record("Stop", quote(name));
+        } else if (running == null && (roll < 45 || tasks.isEmpty())) {
+            running = tasks.isEmpty() || random.nextInt(10) < 3 ? 
+                      newName() : pick();
+            return record("Start", quote(running));
+        } else if (roll < 65) {
+            String name = random.nextInt(10) < 2 ? newName() : pick();
+            String description = DESCRIPTIONS[random.nextInt(
+                                                DESCRIPTIONS.length)];
+            if (random.nextBoolean()) {
+                return record("Describe", quote(name), quote(description),
+                              SIZES[random.nextInt(SIZES.length)]);
+            }
+            return record("Describe", quote(name), quote(description));
+        } else if (roll < 85) {
+            String name = random.nextInt(10) < 2 ? newName() : pick();
+            return record("Size", quote(name), 
+                          SIZES[random.nextInt(SIZES.length)]);
+        } else if (roll < 93) {
+            String name = pickIdle();
+            if (name == null)
+                return nextRecord();
+            String renamed = createName();
+            forget(name);
+            remember(renamed);
+            return record("Rename", quote(name), quote(renamed));
+        } else {
+            String name = pickIdle();
+            if (name == null)
+                return nextRecord();
+            forget(name);
+            return record("Delete", quote(name));
+        }
+    }
+
+    private String record(String command, String... fields) {
+        StringBuilder line = new StringBuilder(64);
+        line.append(clock).append('\t').append(command);
+        for (String field : fields)
+            line.append('\t').append(field);
+        return line.toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value + "\"";
+    }
+
+    private String newName() {
+        String name = createName();
+        remember(name);
+        return name;
+    }
+
+    private String createName() {
+        return PREFIXES[random.nextInt(PREFIXES.length)] + "-" + nextId++;
+    }
+
+    private String pick() {
+        int recent = Math.min(tasks.size(), 256);
+        if (random.nextInt(10) < 8)
+            return tasks.get(tasks.size() - 1 - random.nextInt(recent));
+        return tasks.get(random.nextInt(tasks.size()));
+    }
+
+    private String pickIdle() {
+        for (int attempt = 0; attempt < 3 && !tasks.isEmpty(); attempt++) {
+            String name = pick();
+            if (!name.equals(running))
+                return name;
+        }
+        return null;
+    }
+
+    private void remember(String name) {
+        if (positions.putIfAbsent(name, tasks.size()) == null)
+            tasks.add(name);
+    }
+
+    private void forget(String name) {
+        int index = positions.remove(name);
+        String last = tasks.remove(tasks.size() - 1);
+        if (index < tasks.size()) {
+            tasks.set(index, last);
+            positions.put(last, index);
+        }
+    }
+}
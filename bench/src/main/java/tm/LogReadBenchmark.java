@@ -0,0 +1,49 @@
+package tm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class LogReadBenchmark {
+    private static final Path COMPRESSED = Path.of("TM.log.gz");
+
+    @Param({"10000", "1000000", "10000000"})
+    public int lines;
+
+    @Param({"plain", "compressed"})
+    public String storage;
+
+    private long logLength;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.prepareLog(lines);
+        logLength = FileUtil.getLogLength();
+        if (storage.equals("compressed"))
+            SegmentUtil.writeCompressed(Workspace.LOG, COMPRESSED);
+    }
+
+    @Benchmark
+    public int readLog(Blackhole blackhole) throws IOException {
+        int count = 0;
+        try (LogReader reader = storage.equals("compressed") 
+                ? FileUtil.openCompressedLog(COMPRESSED) 
+                : FileUtil.openLog(0, logLength, true)) {
+            String[] fields;
+            while ((fields = reader.next()) != null) {
+                blackhole.consume(fields);
+                count++;
+            }
+        }
+        return count;
+    }
+}
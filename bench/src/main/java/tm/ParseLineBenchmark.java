@@ -0,0 +1,30 @@
+package tm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ParseLineBenchmark {
+    private final String[] records = new String[4096];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        LogGenerator generator = new LogGenerator(7);
+        for (int i = 0; i < records.length; i++)
+            records[i] = generator.nextRecord();
+    }
+
+    @Benchmark
+    public String[] parseLine() {
+        String record = records[next];
+        next = (next + 1) & (records.length - 1);
+        return FileUtil.parseLine(record);
+    }
+}
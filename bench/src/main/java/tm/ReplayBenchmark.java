@@ -0,0 +1,48 @@
+package tm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ReplayBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int lines;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private Map<CommandType, Command> commandMap;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.prepareLog(lines);
+        commandMap = CommandMapFactory.createCommandMap();
+        if (format.equals("binary"))
+            BinaryLogUtil.toBinary();
+        if (snapshot)
+            TaskMapProcessor.createTaskMap(commandMap);
+    }
+
+    @Setup(Level.Invocation)
+    public void dropSnapshot() throws IOException {
+        if (!snapshot)
+            Files.deleteIfExists(Workspace.SNAPSHOT);
+    }
+
+    @Benchmark
+    public Map<String, Task> createTaskMap() throws IOException {
+        return TaskMapProcessor.createTaskMap(commandMap);
+    }
+}
@@ -0,0 +1,96 @@
+package tm;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ServeLoadTest {
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2])
+                                          : 2_000;
+        Workspace.prepareLog(lines);
+        TaskServer server = TaskServer.start(0);
+        ExecutorService clientThreads = Executors.newFixedThreadPool(4);
+        try {
+            run(server.getPort(), requests, concurrency, clientThreads);
+        } finally {
+            clientThreads.shutdownNow();
+            server.stop();
+        }
+    }
+
+    private static void run(int port, int requests, int concurrency,
+                            ExecutorService clientThreads) throws Exception {
+        String base = "http://127.0.0.1:" + port;
+        HttpClient client = HttpClient.newBuilder()
+                .executor(clientThreads)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        HttpRequest summary = HttpRequest.newBuilder(
+                URI.create(base + "/summary?size=M")).GET().build();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger writes = new AtomicInteger();
+        long[] latencies = new long[requests];
+        List<CompletableFuture<Void>> pending = new ArrayList<>(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            int request = i;
+            long sent = System.nanoTime();
+            HttpRequest next = summary;
+            if (i % 500 == 0) {
+                String action = (i / 500) % 2 == 0 ? "start" : "stop";
+                next = HttpRequest.newBuilder(URI.create(base + "/" + action +
+                        "?task=load-test")).POST(
+                        HttpRequest.BodyPublishers.noBody()).build();
+                writes.incrementAndGet();
+            }
+            boolean write = next != summary;
+            pending.add(client.sendAsync(next,
+                                HttpResponse.BodyHandlers.ofString())
+                    .handle((response, error) -> {
+                        latencies[request] = System.nanoTime() - sent;
+                        if (error != null || (response.statusCode() != 200 &&
+                                !(write && response.statusCode() == 400)))
+                            failures.incrementAndGet();
+                        inFlight.release();
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+                         .join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        System.out.printf("Requests:     %d (%d writes), %d in flight%n",
+                          requests, writes.get(), concurrency);
+        System.out.printf("Throughput:   %.0f requests/s%n",
+                          requests / seconds);
+        System.out.printf("Latency p50:  %.2f ms%n",
+                          percentile(latencies, 0.50));
+        System.out.printf("Latency p99:  %.2f ms%n",
+                          percentile(latencies, 0.99));
+        System.out.printf("Latency max:  %.2f ms%n",
+                          latencies[latencies.length - 1] / 1e6);
+        System.out.printf("Failures:     %d%n", failures.get());
+        if (failures.get() > 0)
+            System.exit(1);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
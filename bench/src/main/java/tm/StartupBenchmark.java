@@ -0,0 +1,79 @@
+package tm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StartupBenchmark {
+    private static final String[][] COMMANDS = {
+        {"help"}, {"summary", "--totals"}
+    };
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Path source = Path.of(System.getProperty("tm.source", 
+                                                 "../../../TM.java"));
+        Path jar = Path.of(System.getProperty("tm.jar", 
+                                              "../../../app/target/tm.jar"));
+        Path archive = Path.of(System.getProperty("tm.archive", 
+                                        "../../../app/target/tm.jsa"));
+        for (Path required : List.of(source, jar, archive)) {
+            if (!Files.exists(required))
+                throw new IllegalStateException("Missing " + required + 
+                        "; build it with mvn -f app/pom.xml package");
+        }
+        Workspace.prepareLog(lines);
+        String java = Path.of(System.getProperty("java.home"), "bin", "java")
+                          .toString();
+        List<List<String>> launchers = List.of(
+                List.of(java, source.toString()),
+                List.of(java, "-jar", jar.toString()),
+                List.of(java, "-XX:SharedArchiveFile=" + archive, 
+                        "-jar", jar.toString()));
+        String[] names = {"java TM.java", "jar", "jar+CDS"};
+        System.out.printf("%d-line TM.log, %d runs each, wall-clock ms%n%n", 
+                          lines, runs);
+        System.out.printf("%-18s %-12s %8s %8s %8s%n", "command", "launcher", 
+                          "median", "min", "max");
+        for (String[] command : COMMANDS) {
+            for (int i = 0; i < launchers.size(); i++) {
+                List<String> commandLine = new ArrayList<>(launchers.get(i));
+                commandLine.addAll(Arrays.asList(command));
+                long[] times = time(commandLine, runs);
+                System.out.printf("%-18s %-12s %8.1f %8.1f %8.1f%n", 
+                                  String.join(" ", command), names[i], 
+                                  times[runs / 2] / 1e6, times[0] / 1e6, 
+                                  times[runs - 1] / 1e6);
+            }
+        }
+    }
+
+    private static long[] time(List<String> commandLine, int runs) 
+                                    throws IOException, InterruptedException {
+        run(commandLine);
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            run(commandLine);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static void run(List<String> commandLine) 
+                                    throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(commandLine)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(String.join(" ", commandLine) + 
+                                " exited with status " + process.exitValue());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package tm;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class StorageBenchmark {
+    @Param({"text", "memory"})
+    public String engine;
+
+    @Param({"10000", "100000"})
+    public int records;
+
+    private final List<LogRecord> stream = new ArrayList<>();
+    private Map<CommandType, Command> commandMap;
+    private StorageEngine storage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        commandMap = CommandMapFactory.createCommandMap();
+        LocalDateTime time = LocalDateTime.of(2024, 5, 1, 9, 0);
+        for (int i = 0; stream.size() < records; i++) {
+            String name = "BENCHMARK-TASK-" + i % 100;
+            if (i % 10 == 0)
+                stream.add(LogRecord.describe(time, name, "Benchmark task", 
+                                              "M"));
+            stream.add(LogRecord.start(time, name));
+            time = time.plusMinutes(7);
+            stream.add(LogRecord.stop(time, name));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createEngine() throws IOException {
+        LogAppender.close();
+        Workspace.clearLog();
+        storage = engine.equals("memory") ? new MemoryEngine() 
+                                          : new TextLogEngine();
+        storage.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LogAppender.close();
+        Workspace.clearLog();
+    }
+
+    @Benchmark
+    public Map<String, Task> appendAndLoad() throws IOException {
+        for (LogRecord record : stream) {
+            storage.append(record);
+        }
+        return storage.load(commandMap);
+    }
+}
@@ -0,0 +1,268 @@
+package tm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+public class StorageConformance {
+    private static final Map<String, Supplier<StorageEngine>> ENGINES = 
+                                                        new LinkedHashMap<>();
+    private static final String[] SIZES = {"S", "M", "L", "XL", "XXL"};
+    private static final String[] DESCRIPTIONS = {
+        "Follow up on customer ticket", "Investigate flaky build", 
+        "Pair on parser rewrite", "Weekly planning"};
+    private static final Pattern DURATION = Pattern.compile(
+                                                    "\\d+:\\d\\d:\\d\\d");
+    private static final String RUNNING_TIME = "<running>";
+
+    static {
+        ENGINES.put("text", TextLogEngine::new);
+        ENGINES.put("memory", MemoryEngine::new);
+    }
+
+    private static class Run {
+        final List<String> results = new ArrayList<>();
+        final List<String> tasks = new ArrayList<>();
+        final List<String> log = new ArrayList<>();
+    }
+
+    private static class StepClock extends Clock {
+        private Instant next = Instant.parse("2024-05-01T09:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            Instant now = next;
+            next = next.plusSeconds(97);
+            return now;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        List<String[]> commands = commands(count, 42);
+        String reference = null;
+        Run expected = null;
+        int failures = 0;
+        for (Map.Entry<String, Supplier<StorageEngine>> engine : 
+                ENGINES.entrySet()) {
+            StorageEngine storage = engine.getValue().get();
+            Run run = run(storage, commands);
+            if (expected == null) {
+                reference = engine.getKey();
+                expected = run;
+                System.out.printf("%-8s %d commands, %d tasks left%n", 
+                                  engine.getKey(), commands.size(), 
+                                  run.tasks.size());
+                continue;
+            }
+            int mismatches = compare(commands, expected, run);
+            if (storage instanceof MemoryEngine && !expected.log.isEmpty())
+                mismatches += checkRecords((MemoryEngine) storage, 
+                                           expected.log);
+            failures += mismatches;
+            System.out.printf("%-8s %s%n", engine.getKey(), mismatches == 0 
+                    ? "matches " + reference 
+                    : mismatches + " differences from " + reference);
+        }
+        failures += checkIsolation();
+        Storage.setEngine(new TextLogEngine());
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    // Each engine replays into its own task map, so loading one must
+    // leave the tasks and running task of another untouched.
+    private static int checkIsolation() throws IOException {
+        Map<CommandType, Command> commands = 
+                                        CommandMapFactory.createCommandMap();
+        MemoryEngine first = new MemoryEngine();
+        MemoryEngine second = new MemoryEngine();
+        first.append(LogRecord.start(LogRecord.now(), "FIRST"));
+        second.append(LogRecord.start(LogRecord.now(), "SECOND"));
+        TaskMap firstTasks = first.load(commands);
+        TaskMap secondTasks = second.load(commands);
+        boolean separate = firstTasks.keySet().equals(Set.of("FIRST")) && 
+                firstTasks.getRunningTask() == firstTasks.get("FIRST") && 
+                secondTasks.keySet().equals(Set.of("SECOND")) && 
+                secondTasks.getRunningTask() == secondTasks.get("SECOND");
+        System.out.printf("%-8s %s%n", "engines", separate 
+                ? "keep separate task maps" 
+                : "share task state: " + firstTasks.keySet() + " and " + 
+                  secondTasks.keySet());
+        return separate ? 0 : 1;
+    }
+
+    private static Run run(StorageEngine storage, List<String[]> commands) 
+                                                        throws IOException {
+        LogAppender.close();
+        Workspace.clearLog();
+        Storage.setEngine(storage);
+        LogRecord.setClock(new StepClock());
+        Run run = new Run();
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(captured, true);
+        try {
+            System.setOut(capture);
+            System.setErr(capture);
+            for (String[] command : commands) {
+                captured.reset();
+                TaskManager.reset();
+                int status = TaskManager.getInstance().execute(command);
+                String output = command[0].equals("summary") 
+                                ? normalize(captured.toString()) 
+                                : captured.toString();
+                run.results.add(status + " " + output);
+            }
+            TaskManager.reset();
+            if (storage instanceof TextLogEngine)
+                run.log.addAll(Files.readAllLines(Workspace.LOG, 
+                                                  LogReader.CHARSET));
+            for (Task task : TaskManager.getInstance().loadTaskMap().values()) {
+                run.tasks.add(task.getTaskName() + " | " + 
+                              task.getDescription() + " | " + 
+                              task.getSize() + " | " + 
+                              task.getAccumulatedTime() + " | " + 
+                              task.getStartTime());
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+            LogRecord.setClock(Clock.systemDefaultZone());
+            TaskManager.reset();
+        }
+        run.tasks.sort(null);
+        return run;
+    }
+
+    // The running task's time so far depends on the wall clock, not on
+    // the records, so it and every total it is part of are masked. Tasks
+    // are listed in the order of the engine's task map, so the task
+    // blocks are sorted. All other output is compared as it is.
+    private static String normalize(String summary) {
+        String running = null;
+        String task = null;
+        StringBuilder normalized = new StringBuilder(summary.length());
+        for (String line : summary.split("\n", -1)) {
+            String value = line.substring(line.lastIndexOf('\t') + 1).trim();
+            if (line.startsWith("Current Running Task:"))
+                running = value;
+            else if (line.startsWith("Summary for Task"))
+                task = value;
+            boolean masked = running != null && 
+                    (line.startsWith("Total Time Spent on Tasks") || 
+                     line.startsWith("Min Duration") || 
+                     line.startsWith("Max Duration") || 
+                     line.startsWith("Average Duration") || 
+                     (line.startsWith("Total Time Spent") && 
+                      running.equals(task)));
+            normalized.append(masked 
+                    ? DURATION.matcher(line).replaceAll(RUNNING_TIME) 
+                    : line).append('\n');
+        }
+        List<String> blocks = new ArrayList<>(List.of(
+                                    normalized.toString().split("\n\n")));
+        for (int i = 0; i < blocks.size(); i++) {
+            int end = i;
+            while (end < blocks.size() && 
+                    blocks.get(end).startsWith("Summary for Task"))
+                end++;
+            blocks.subList(i, end).sort(null);
+            i = end;
+        }
+        return String.join("\n\n", blocks);
+    }
+
+    private static int compare(List<String[]> commands, Run expected, 
+                               Run actual) {
+        int mismatches = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            if (!expected.results.get(i).equals(actual.results.get(i))) {
+                if (mismatches++ < 10) {
+                    System.out.println("  command " + (i + 1) + " " + 
+                            String.join(" ", commands.get(i)) + ": expected " +
+                            expected.results.get(i).trim() + ", got " + 
+                            actual.results.get(i).trim());
+                }
+            }
+        }
+        if (!expected.tasks.equals(actual.tasks)) {
+            mismatches++;
+            System.out.println("  replayed tasks differ:\n  expected " + 
+                               expected.tasks + "\n  got      " + 
+                               actual.tasks);
+        }
+        return mismatches;
+    }
+
+    // Records kept in memory must format to exactly the lines the text
+    // engine wrote for the same commands, and tokenize the same way.
+    private static int checkRecords(MemoryEngine storage, 
+                                    List<String> lines) {
+        List<LogRecord> records = storage.getRecords();
+        int mismatches = lines.size() == records.size() ? 0 : 1;
+        for (int i = 0; i < Math.min(lines.size(), records.size()); i++) {
+            LogRecord record = records.get(i);
+            String[] fields = FileUtil.parseLine(record.format());
+            if (!record.format().equals(lines.get(i)) || 
+                    !Objects.deepEquals(fields, record.getFields())) {
+                if (mismatches++ < 10)
+                    System.out.println("  record " + (i + 1) + ": " + 
+                                       record.format());
+            }
+        }
+        return mismatches;
+    }
+
+    private static List<String[]> commands(int count, long seed) {
+        Random random = new Random(seed);
+        List<String[]> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = "task " + random.nextInt(12);
+            String other = "task " + random.nextInt(12);
+            String size = SIZES[random.nextInt(SIZES.length)];
+            String description = DESCRIPTIONS[random.nextInt(
+                                                    DESCRIPTIONS.length)];
+            switch (random.nextInt(10)) {
+                case 0, 1 -> commands.add(new String[] {"start", name});
+                case 2, 3 -> commands.add(new String[] {"stop", name});
+                case 4 -> commands.add(new String[] {"describe", name, 
+                                                     description, size});
+                case 5 -> commands.add(new String[] {"describe", name, 
+                                                     description});
+                case 6 -> commands.add(new String[] {"size", name, size});
+                case 7 -> commands.add(new String[] {"rename", name, other});
+                case 8 -> commands.add(new String[] {"delete", name});
+                default -> commands.add(random.nextBoolean() 
+                        ? new String[] {"summary"} 
+                        : new String[] {"summary", name});
+            }
+        }
+        return commands;
+    }
+}
@@ -0,0 +1,58 @@
+package tm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class SummaryBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int lines;
+
+    private TaskMap taskMap;
+    private List<Task> tasks;
+    private Task runningTask;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.prepareLog(lines);
+        taskMap = TaskMapProcessor.createTaskMap(
+                CommandMapFactory.createCommandMap());
+        tasks = new ArrayList<>(taskMap.values());
+        runningTask = taskMap.getRunningTask();
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void printSummary() {
+        SummaryProcessor.printSummary(tasks, runningTask, 
+                                      taskMap.statistics(null));
+    }
+
+    @Benchmark
+    public void printSummaryWithPassStatistics() {
+        SummaryProcessor.printSummary(tasks, runningTask, null);
+    }
+
+    @Benchmark
+    public void printPercentiles() {
+        SummaryProcessor.printPercentiles();
+    }
+}
@@ -0,0 +1,49 @@
+package tm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+final class Workspace {
+    static final Path LOG = Path.of("TM.log");
+    static final Path SNAPSHOT = Path.of("TM.snapshot");
+    static final Path INDEX = Path.of("TM.index");
+    static final Path BINARY = Path.of("TM.bin");
+    private static final Path MARKER = Path.of(".tm-bench");
+    private static final Path GENERATED = Path.of("TM.log.generated");
+    private static final long SEED = 42;
+
+    private Workspace() {
+    }
+
+    static void checkDirectory() {
+        if (!Files.exists(MARKER)) {
+            throw new IllegalStateException("Benchmarks rewrite TM.log in " + 
+                    "the working directory; run them through bench/run.sh " + 
+                    "or from a directory containing " + MARKER);
+        }
+    }
+
+    static void prepareLog(int lines) throws IOException {
+        checkDirectory();
+        String expected = lines + " " + SEED;
+        if (!Files.exists(LOG) || !Files.exists(GENERATED) || 
+                !Files.readString(GENERATED).equals(expected + " " + 
+                                                    Files.size(LOG))) {
+            LogGenerator.generate(LOG, lines, SEED);
+            Files.writeString(GENERATED, expected + " " + Files.size(LOG));
+        }
+        Files.deleteIfExists(SNAPSHOT);
+        Files.deleteIfExists(INDEX);
+        Files.deleteIfExists(BINARY);
+    }
+
+    static void clearLog() throws IOException {
+        checkDirectory();
+        Files.write(LOG, new byte[0]);
+        Files.deleteIfExists(GENERATED);
+        Files.deleteIfExists(SNAPSHOT);
+        Files.deleteIfExists(INDEX);
+        Files.deleteIfExists(BINARY);
+    }
+}